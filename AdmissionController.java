@@ -0,0 +1,151 @@
+// ========== AdmissionController.java ==========
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control for username registrations (reconnect storms)
+ * Registering is the expensive part of a new connection: claiming the name,
+ * entering the lobby (a join broadcast to every member), history replay and
+ * offline mail. Registrations therefore queue for a few worker threads instead
+ * of running on whichever thread read the name (an I/O loop, in nio mode).
+ * A registration is refused when the wait it would face - registrations ahead of
+ * it times the recent average cost of one, spread over the workers - is above
+ * --register-max-wait-ms. Admitted clients are registered within that bound; the
+ * others are told when to come back, with jitter so they do not return together.
+ * While registrations are queued, "joined" announcements are collected and sent
+ * as one line per room when the queue empties (or every MAX_BATCHED_JOINS), so a
+ * storm of n joins costs each room member a few lines instead of n.
+ *
+ * Options: --register-workers=2 (0 = register inline on the reading thread, no
+ * admission control), --register-max-wait-ms=2000
+ */
+final class AdmissionController {
+    private static final int MAX_BATCHED_JOINS = 100;
+    private static final int NAMES_SHOWN = 10;
+
+    private final ExecutorService workers;
+    private final int workerCount;
+    private final long maxWaitNanos;
+    private final AtomicInteger waiting = new AtomicInteger();
+    // Moving average of one registration's run time (updated racily; an estimate is all it is)
+    private volatile long averageNanos = 100_000;
+    // Joins not announced yet, per room (guarded by itself)
+    private final Map<ChatRoom, List<ClientHandler>> pendingJoins = new HashMap<>();
+
+    private AdmissionController(int workerCount, long maxWaitNanos) {
+        this.workerCount = workerCount;
+        this.maxWaitNanos = maxWaitNanos;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, task -> {
+            Thread thread = new Thread(task, "chat-register-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Controller configured by the options, or null when registrations run inline
+    static AdmissionController start(ChatOptions options) {
+        int workerCount = options.getInt("register-workers", 2);
+        if (workerCount <= 0) {
+            return null;
+        }
+        return new AdmissionController(workerCount, options.getLong("register-max-wait-ms", 2000) * 1_000_000);
+    }
+
+    // Queue one registration; false when it would wait too long and the client should retry later
+    boolean submit(Runnable registration) {
+        int ahead = waiting.get();
+        if (ahead >= workerCount && estimatedWaitNanos(ahead) > maxWaitNanos) {
+            ChatMetrics.registrationRefused();
+            return false;
+        }
+        waiting.incrementAndGet();
+        long queuedAt = System.nanoTime();
+        workers.execute(() -> {
+            waiting.decrementAndGet();
+            long start = System.nanoTime();
+            try {
+                registration.run();
+            } catch (RuntimeException e) {
+                ChatLog.error("Registration failed: " + e);
+            } finally {
+                long end = System.nanoTime();
+                averageNanos += (end - start - averageNanos) / 8;
+                ChatMetrics.registrationLatency((end - queuedAt) / 1000);
+                if (waiting.get() == 0) {
+                    // Storm over (or never started): nothing may stay unannounced
+                    flushJoins(null);
+                }
+            }
+        });
+        return true;
+    }
+
+    // Announce a registered user to its room, batched with other joins while registrations are queued
+    void announceJoin(ChatRoom room, ClientHandler joiner) {
+        boolean full;
+        synchronized (pendingJoins) {
+            List<ClientHandler> joiners = pendingJoins.computeIfAbsent(room, key -> new ArrayList<>());
+            joiners.add(joiner);
+            full = joiners.size() >= MAX_BATCHED_JOINS;
+        }
+        if (full || waiting.get() == 0) {
+            flushJoins(full ? room : null);
+        }
+    }
+
+    // Send held announcements for one room, or for all rooms when room is null
+    private void flushJoins(ChatRoom room) {
+        Map<ChatRoom, List<ClientHandler>> batches = new HashMap<>();
+        synchronized (pendingJoins) {
+            if (room == null) {
+                batches.putAll(pendingJoins);
+                pendingJoins.clear();
+            } else {
+                List<ClientHandler> joiners = pendingJoins.remove(room);
+                if (joiners != null) {
+                    batches.put(room, joiners);
+                }
+            }
+        }
+        for (Map.Entry<ChatRoom, List<ClientHandler>> batch : batches.entrySet()) {
+            List<ClientHandler> joiners = batch.getValue();
+            if (joiners.size() == 1) {
+                ChatServer.broadcastToRoom(batch.getKey(), "👋 " + joiners.get(0).getUsername() + " joined the chat!",
+                        joiners.get(0));
+                continue;
+            }
+            StringJoiner names = new StringJoiner(", ");
+            for (int i = 0; i < Math.min(NAMES_SHOWN, joiners.size()); i++) {
+                names.add(joiners.get(i).getUsername());
+            }
+            int others = joiners.size() - NAMES_SHOWN;
+            // The joiners already know they joined
+            ChatServer.broadcastToRoomExcept(batch.getKey(), "👋 " + names + (others > 0 ? " and " + others + (others == 1 ? " other" : " others") : "") +
+                    " joined the chat!", new HashSet<>(joiners));
+        }
+    }
+
+    // Seconds a refused client should wait: the current backlog plus up to as much again
+    long retryAfterSeconds() {
+        long backlogSeconds = Math.max(1, estimatedWaitNanos(waiting.get()) / 1_000_000_000L);
+        return backlogSeconds + ThreadLocalRandom.current().nextLong(backlogSeconds + 1);
+    }
+
+    // Registrations queued and not yet started
+    int getWaiting() {
+        return waiting.get();
+    }
+
+    private long estimatedWaitNanos(int ahead) {
+        return (ahead + 1) * averageNanos / workerCount;
+    }
+}
@@ -0,0 +1,115 @@
+// ========== BufferPool.java ==========
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pooled ByteBuffers for connection I/O and large relayed messages
+ * Sizes are rounded up to a power of two and each size has its own free list.
+ * Connection-sized buffers (4 KB to 32 KB) are carved from 1 MB slabs, so a
+ * thousand borrowers cost a few large allocations rather than a thousand small
+ * ones; bigger buffers (relayed messages) are allocated one by one. Connections
+ * borrow a buffer only while bytes are in flight and give it back as soon as it
+ * is empty, so an idle connection holds none.
+ *
+ * DIRECT serves channel I/O (TLS records, relayed messages); HEAP serves code
+ * that needs an array (FrameDecoder input, blocking socket streams). A buffer
+ * given back beyond --buffer-pool-mb of idle capacity is left to the garbage
+ * collector. Hits (reused) and misses (newly allocated) are in ChatMetrics.
+ *
+ * Options: --buffer-pool-mb=64 (idle memory kept per pool)
+ */
+final class BufferPool {
+    private static final int MIN_SHIFT = 12;
+    private static final int SLAB_MAX_SHIFT = 15;
+    private static final int MAX_SHIFT = 30;
+    private static final int SLAB_BYTES = 1024 * 1024;
+    private static final long MAX_IDLE_BYTES = ChatServer.options().getLong("buffer-pool-mb", 64) * 1024 * 1024;
+
+    static final BufferPool DIRECT = new BufferPool(true);
+    static final BufferPool HEAP = new BufferPool(false);
+
+    private final boolean direct;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Queue<ByteBuffer>[] free = new Queue[MAX_SHIFT - MIN_SHIFT + 1];
+    private final AtomicLong idleBytes = new AtomicLong();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private BufferPool(boolean direct) {
+        this.direct = direct;
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    // Cleared buffer with at least capacity bytes (limit = capacity)
+    ByteBuffer acquire(int capacity) {
+        int shift = shift(capacity);
+        Queue<ByteBuffer> sizeClass = free[shift - MIN_SHIFT];
+        ByteBuffer buffer = sizeClass.poll();
+        if (buffer != null) {
+            hits.increment();
+            idleBytes.addAndGet(-buffer.capacity());
+            return buffer.clear().limit(capacity);
+        }
+        misses.increment();
+        if (shift > SLAB_MAX_SHIFT) {
+            allocatedBytes.add(1L << shift);
+            return allocate(1 << shift).limit(capacity);
+        }
+        // Carve a new slab: keep one piece, the rest become idle pieces of this size
+        ByteBuffer slab = allocate(SLAB_BYTES);
+        allocatedBytes.add(SLAB_BYTES);
+        int size = 1 << shift;
+        for (int offset = size; offset < SLAB_BYTES; offset += size) {
+            sizeClass.offer(slab.limit(offset + size).position(offset).slice());
+        }
+        idleBytes.addAndGet(SLAB_BYTES - size);
+        return slab.limit(size).position(0).slice().limit(capacity);
+    }
+
+    // Give a buffer from acquire() back; nobody may use it afterwards
+    void release(ByteBuffer buffer) {
+        if (idleBytes.addAndGet(buffer.capacity()) > MAX_IDLE_BYTES) {
+            idleBytes.addAndGet(-buffer.capacity());
+            return;
+        }
+        free[shift(buffer.capacity()) - MIN_SHIFT].offer(buffer);
+    }
+
+    // Memory currently idle in the pool
+    long getIdleBytes() {
+        return idleBytes.get();
+    }
+
+    // Memory the pool has allocated since startup (slabs and single buffers)
+    long getAllocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    // Acquires served from a free list
+    long getHits() {
+        return hits.sum();
+    }
+
+    // Acquires that had to allocate
+    long getMisses() {
+        return misses.sum();
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private static int shift(int capacity) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity - 1)));
+        if (shift > MAX_SHIFT) {
+            throw new IllegalArgumentException("Buffer too large: " + capacity);
+        }
+        return shift;
+    }
+}
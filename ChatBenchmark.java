@@ -0,0 +1,1137 @@
+// ========== ChatBenchmark.java ==========
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.*;
+import javax.net.ssl.*;
+
+/**
+ * Chat Server micro/load benchmarks
+ * Usage: java ChatBenchmark <scenario> [--key=value ...]
+ *
+ * Scenarios:
+ * - connections : Memory and platform-thread cost of idle registered connections
+ *                 --io=thread|virtual|nio --counts=1000,10000,50000
+ * - broadcast   : Bytes allocated per broadcast, per-recipient encoding vs encode-once
+ *                 --recipients=10000 --rounds=200 --size=64
+ * - batching    : Socket writes per delivered message for a burst to one room
+ *                 --io=thread|nio --receivers=50 --messages=2000 --flush-delay-us=0
+ * - timestamp   : Cost of a message timestamp, formatting per call vs ChatClock
+ *                 --rounds=1000000
+ * - parse       : Inbound parse cost per message, text lines vs binary frames
+ *                 --messages=100000 --size=64
+ * - compression : Wire bytes vs CPU of /compress framing at several message sizes
+ *                 --sizes=32,128,512,2048,8192 --recipients=1000 --rounds=20000
+ * - claims      : Many threads registering the same usernames at once; every name must
+ *                 end up with exactly one owner     --threads=256 --names=10000
+ * - roster      : Cost of one /users reply, joining every name vs the cached UserRoster
+ *                 --users=100000 --rounds=200 --users-page=100
+ * - storm       : Reconnect storm: many clients connect and register at once; reports
+ *                 registration latency and refusals  --io=nio --clients=3000 --connectors=8
+ *                 (compare --register-workers=0, --acceptors, --register-max-wait-ms)
+ * - tls         : Handshake rate (full vs resumed) and per-message cost of TLS vs plain
+ *                 TCP, against a throwaway self-signed keystore made with keytool
+ *                 --handshakes=2000 --threads=4 --messages=50000 --size=64
+ * - relay       : Large binary MESSAGE frames relayed from pooled direct buffers: throughput,
+ *                 server allocation and loop CPU per message, next to the cost of decoding
+ *                 and re-encoding the same line as a String   --io=nio --receivers=20
+ *                 --messages=200 --sizes=65536,262144,1048576 --window=8
+ *
+ * Socket scenarios start the server in-process, so run one I/O mode per JVM. Every
+ * connection uses two file descriptors here (client and server side), so raise
+ * "ulimit -n" above 2x the largest count.
+ */
+public class ChatBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: java ChatBenchmark <scenario> [--key=value ...]");
+            System.out.println("Scenarios: connections, broadcast, batching, timestamp, parse, compression, claims, roster, storm, tls, relay");
+            return;
+        }
+        ChatOptions options = ChatOptions.parse(Arrays.copyOfRange(args, 1, args.length));
+
+        switch (args[0]) {
+            case "connections":
+                connections(options);
+                break;
+
+            case "broadcast":
+                broadcast(options);
+                break;
+
+            case "batching":
+                batching(options);
+                break;
+
+            case "timestamp":
+                timestamp(options);
+                break;
+
+            case "parse":
+                parse(options);
+                break;
+
+            case "compression":
+                compression(options);
+                break;
+
+            case "claims":
+                claims(options);
+                break;
+
+            case "roster":
+                roster(options);
+                break;
+
+            case "storm":
+                storm(options);
+                break;
+
+            case "tls":
+                tls(options);
+                break;
+
+            case "relay":
+                relay(options);
+                break;
+
+            default:
+                System.out.println("Unknown scenario: " + args[0]);
+                break;
+        }
+    }
+
+    // Open idle, registered connections in steps and report heap/thread cost at each step
+    private static void connections(ChatOptions options) throws Exception {
+        String io = options.get("io", "thread");
+        int[] counts = parseCounts(options.get("counts", "1000,10000,50000"));
+        PrintStream report = System.out;
+
+        int port = startServer(options, io);
+        long baseHeap = usedHeap();
+        int baseThreads = platformThreads();
+
+        report.println("=== CONNECTIONS BENCHMARK (io=" + io + ") ===");
+        report.printf("%-12s %-14s %-16s %-16s %-12s%n",
+                "connections", "heap used MB", "heap/conn bytes", "platform thr.", "connect ms");
+
+        List<SocketChannel> channels = new ArrayList<>();
+        try {
+            for (int target : counts) {
+                long start = System.nanoTime();
+                while (channels.size() < target) {
+                    channels.add(openRegistered(port, "user" + channels.size()));
+                }
+                awaitUsers(target);
+                long connectMillis = (System.nanoTime() - start) / 1_000_000;
+
+                long heap = usedHeap();
+                report.printf("%-12d %-14.1f %-16d %-16d %-12d%n",
+                        target, heap / 1048576.0, (heap - baseHeap) / target,
+                        platformThreads() - baseThreads, connectMillis);
+            }
+        } catch (IOException e) {
+            report.println("Stopped at " + channels.size() + " connections: " + e.getMessage());
+        } finally {
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+        }
+        System.exit(0);
+    }
+
+    // Allocation cost of one broadcast to many in-process recipients (no sockets involved)
+    private static void broadcast(ChatOptions options) {
+        int recipients = options.getInt("recipients", 10000);
+        int rounds = options.getInt("rounds", 200);
+        int size = options.getInt("size", 64);
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        // Recipients whose write path takes and drops a reference, like a completed write
+        ChatTransport sink = new ChatTransport() {
+            @Override
+            public void send(EncodedMessage message) {
+                message.retain().release();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        List<ClientHandler> handlers = new ArrayList<>();
+        for (int i = 0; i <= recipients; i++) {
+            ClientHandler handler = new ClientHandler(sink);
+            ChatServer.registerClient(handler, InetAddress.getLoopbackAddress());
+            handler.handleLine("user" + i);
+            handlers.add(handler);
+        }
+        ClientHandler sender = handlers.get(0);
+        String message = "[12:00:00] user0: " + "x".repeat(size);
+
+        Runnable perRecipient = () -> {
+            for (ClientHandler handler : handlers) {
+                if (handler != sender) {
+                    handler.sendMessage(message);
+                }
+            }
+        };
+        Runnable encodeOnce = () -> {
+            EncodedMessage encoded = EncodedMessage.of(message);
+            try {
+                for (ClientHandler handler : handlers) {
+                    if (handler != sender) {
+                        handler.sendMessage(encoded);
+                    }
+                }
+            } finally {
+                encoded.release();
+            }
+        };
+
+        report.println("=== BROADCAST BENCHMARK (" + recipients + " recipients, " + size + " byte body) ===");
+        report.printf("%-22s %-22s %-14s%n", "path", "bytes/broadcast", "us/broadcast");
+        for (int pass = 0; pass < 2; pass++) {
+            // First pass warms up the JIT, second one is reported
+            long[] legacy = measureAllocations(perRecipient, rounds);
+            long[] shared = measureAllocations(encodeOnce, rounds);
+            if (pass == 1) {
+                report.printf("%-22s %-22d %-14d%n", "encode per recipient", legacy[0], legacy[1]);
+                report.printf("%-22s %-22d %-14d%n", "encode once", shared[0], shared[1]);
+            }
+        }
+    }
+
+    // One sender bursts lines into the lobby; receivers count what arrives
+    private static void batching(ChatOptions options) throws Exception {
+        String io = options.get("io", "nio");
+        int receivers = options.getInt("receivers", 50);
+        int messages = options.getInt("messages", 2000);
+        PrintStream report = System.out;
+        // Measure writes, not slow-consumer drops
+        options.set("queue-limit", options.get("queue-limit", String.valueOf(messages * 2)));
+
+        int port = startServer(options, io);
+        List<Thread> readers = new ArrayList<>();
+        List<Socket> sockets = new ArrayList<>();
+        java.util.concurrent.CountDownLatch done = new java.util.concurrent.CountDownLatch(receivers);
+        for (int i = 0; i < receivers; i++) {
+            Socket socket = new Socket("localhost", port);
+            sockets.add(socket);
+            socket.getOutputStream().write(("reader" + i + "\n").getBytes(StandardCharsets.UTF_8));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Thread reader = new Thread(() -> {
+                int received = 0;
+                try {
+                    String line;
+                    while (received < messages && (line = in.readLine()) != null) {
+                        if (line.contains("sender: ")) {
+                            received++;
+                        }
+                    }
+                } catch (IOException e) {
+                    // counted as missing
+                }
+                done.countDown();
+            });
+            reader.setDaemon(true);
+            reader.start();
+            readers.add(reader);
+        }
+        Socket sender = new Socket("localhost", port);
+        OutputStream out = sender.getOutputStream();
+        out.write("sender\n".getBytes(StandardCharsets.UTF_8));
+        awaitUsers(receivers + 1);
+        Thread.sleep(500);
+
+        long writesBefore = OutboundQueue.getWriteCalls();
+        long messagesBefore = OutboundQueue.getMessagesWritten();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            out.write(("message " + i + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        boolean complete = done.await(60, java.util.concurrent.TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        long writes = OutboundQueue.getWriteCalls() - writesBefore;
+        long written = OutboundQueue.getMessagesWritten() - messagesBefore;
+
+        report.println("=== BATCHING BENCHMARK (io=" + io + ", flush-delay-us=" +
+                options.getLong("flush-delay-us", 0) + ") ===");
+        report.println("Messages delivered : " + written + (complete ? "" : " (incomplete)"));
+        report.println("Socket writes      : " + writes);
+        report.printf("Writes per message : %.3f%n", written == 0 ? 0.0 : (double) writes / written);
+        report.printf("Delivery time      : %d ms%n", elapsed / 1_000_000);
+        sender.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        System.exit(0);
+    }
+
+    // Allocation per timestamped message line, old formatter-per-call path vs the cached clock
+    private static void timestamp(ChatOptions options) {
+        int rounds = options.getInt("rounds", 1_000_000);
+        String[] sink = new String[1];
+        Runnable formatted = () -> sink[0] = "[" + java.time.LocalDateTime.now().format(
+                java.time.format.DateTimeFormatter.ofPattern("HH:mm:ss")) + "] user: hello";
+        Runnable cached = () -> sink[0] = "[" + ChatClock.currentTime() + "] user: hello";
+
+        System.out.println("=== TIMESTAMP BENCHMARK (" + rounds + " messages) ===");
+        System.out.printf("%-22s %-18s %-14s%n", "path", "bytes/message", "ns/message");
+        for (int pass = 0; pass < 2; pass++) {
+            long[] perCall = measureAllocations(formatted, rounds);
+            long[] clock = measureAllocations(cached, rounds);
+            if (pass == 1) {
+                System.out.printf("%-22s %-18d %-14d%n", "format per message", perCall[0], nanosPerRun(formatted, rounds));
+                System.out.printf("%-22s %-18d %-14d%n", "ChatClock", clock[0], nanosPerRun(cached, rounds));
+            }
+        }
+    }
+
+    /**
+     * Decode /private messages from 8 KB reads, as text lines and as PRIVATE frames.
+     * The receivers stop where ClientHandler would act: target and body in hand.
+     */
+    private static void parse(ChatOptions options) {
+        int messages = options.getInt("messages", 100_000);
+        int size = options.getInt("size", 64);
+        String body = "x".repeat(size);
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        for (int i = 0; i < messages; i++) {
+            text.writeBytes(("/private user" + (i % 100) + " " + body + "\n").getBytes(StandardCharsets.UTF_8));
+            binary.writeBytes(FrameDecoder.encode(FrameDecoder.PRIVATE, "user" + (i % 100), body));
+        }
+        String[] sink = new String[2];
+
+        FrameDecoder lines = new FrameDecoder(new ParseReceiver() {
+            @Override
+            public void onLine(String line) {
+                // ClientHandler.handleCommand
+                if (line.startsWith("/")) {
+                    String[] parts = line.split(" ", 3);
+                    if ("/private".equals(parts[0].toLowerCase()) && parts.length == 3) {
+                        sink[0] = parts[1];
+                        sink[1] = parts[2];
+                    }
+                }
+            }
+        });
+        FrameDecoder frames = new FrameDecoder(new ParseReceiver() {
+            @Override
+            public void onFrame(int opcode, byte[] data, int targetOffset, int targetLength,
+                                int payloadOffset, int payloadLength) {
+                // ClientHandler.onFrame
+                if (opcode == FrameDecoder.PRIVATE) {
+                    sink[0] = new String(data, targetOffset, targetLength, StandardCharsets.UTF_8);
+                    sink[1] = new String(data, payloadOffset, payloadLength, StandardCharsets.UTF_8);
+                }
+            }
+        });
+        frames.enableBinary();
+        byte[] textBytes = text.toByteArray();
+        byte[] binaryBytes = binary.toByteArray();
+        Runnable parseText = () -> feedInReads(lines, textBytes);
+        Runnable parseBinary = () -> feedInReads(frames, binaryBytes);
+
+        System.out.println("=== PARSE BENCHMARK (" + messages + " /private messages, " + size + " byte body) ===");
+        System.out.printf("%-16s %-18s %-14s%n", "protocol", "bytes/message", "ns/message");
+        for (int pass = 0; pass < 3; pass++) {
+            long[] textCost = measureAllocations(parseText, 5);
+            long[] binaryCost = measureAllocations(parseBinary, 5);
+            if (pass == 2) {
+                System.out.printf("%-16s %-18d %-14d%n", "text lines", textCost[0] / messages,
+                        nanosPerRun(parseText, 5) / messages);
+                System.out.printf("%-16s %-18d %-14d%n", "binary frames", binaryCost[0] / messages,
+                        nanosPerRun(parseBinary, 5) / messages);
+            }
+        }
+    }
+
+    /**
+     * For chat-like text of each size: bytes on the wire per message for plain
+     * lines and for frames at level 1 / 6, with and without the dictionary, and
+     * the CPU to deflate and inflate one message. A broadcast deflates once, so
+     * the deflate time is paid once per broadcast while the saving is per recipient.
+     */
+    private static void compression(ChatOptions options) throws Exception {
+        int[] sizes = parseCounts(options.get("sizes", "32,128,512,2048,8192"));
+        int recipients = options.getInt("recipients", 1000);
+        int rounds = options.getInt("rounds", 20_000);
+        String[] words = ("the and you to is it that of for in this have what are with on not be just like " +
+                "can so but release build tests server client room message thanks please really think " +
+                "would could tomorrow meeting deploy branch merge review bug fix works again today").split(" ");
+        Random random = new Random(42);
+        java.util.zip.Deflater fast = new java.util.zip.Deflater(1, true);
+        java.util.zip.Deflater default6 = new java.util.zip.Deflater(6, true);
+        java.util.zip.Inflater inflater = new java.util.zip.Inflater(true);
+
+        System.out.println("=== COMPRESSION BENCHMARK (bytes per message, " + recipients + " recipients) ===");
+        System.out.printf("%-7s %-7s %-9s %-11s %-11s %-12s %-12s %-14s%n", "size", "plain", "level 1",
+                "l1 + dict", "l6 + dict", "deflate ns", "inflate ns", "saved KB/bcast");
+        for (int size : sizes) {
+            byte[][] lines = new byte[64][];
+            for (int i = 0; i < lines.length; i++) {
+                StringBuilder text = new StringBuilder("[12:34:56] user" + i + ": ");
+                while (text.length() < size) {
+                    text.append(words[random.nextInt(words.length)]).append(' ');
+                }
+                lines[i] = (text.substring(0, size) + "\n").getBytes(StandardCharsets.UTF_8);
+            }
+            long plain = 0;
+            long noDictionary = 0;
+            long dictionary = 0;
+            long level6 = 0;
+            for (byte[] line : lines) {
+                plain += line.length;
+                noDictionary += ChatCompression.frame(line, fast, null, 0).length;
+                dictionary += ChatCompression.frame(line, fast, ChatCompression.DICTIONARY, 0).length;
+                level6 += ChatCompression.frame(line, default6, ChatCompression.DICTIONARY, 0).length;
+            }
+
+            int[] next = new int[1];
+            byte[][] frames = new byte[lines.length][];
+            Runnable deflate = () -> {
+                int i = next[0]++ & (lines.length - 1);
+                frames[i] = ChatCompression.frame(lines[i], fast, ChatCompression.DICTIONARY, 0);
+            };
+            Runnable inflate = () -> {
+                byte[] frame = frames[next[0]++ & (lines.length - 1)];
+                int header = ByteBuffer.wrap(frame).getInt();
+                try {
+                    ChatCompression.unframe(header, Arrays.copyOfRange(frame, 4, frame.length), inflater);
+                } catch (java.util.zip.DataFormatException e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+            nanosPerRun(deflate, rounds);
+            nanosPerRun(inflate, rounds);
+            long deflateNanos = nanosPerRun(deflate, rounds);
+            long inflateNanos = nanosPerRun(inflate, rounds);
+
+            int n = lines.length;
+            System.out.printf("%-7d %-7d %-9d %-11d %-11d %-12d %-12d %-14d%n", size, plain / n,
+                    noDictionary / n, dictionary / n, level6 / n, deflateNanos, inflateNanos,
+                    (plain - dictionary) / n * recipients / 1024);
+        }
+    }
+
+    private static void feedInReads(FrameDecoder decoder, byte[] stream) {
+        for (int offset = 0; offset < stream.length; offset += 8192) {
+            decoder.feed(stream, offset, Math.min(8192, stream.length - offset));
+        }
+    }
+
+    // Receiver that ignores whatever a scenario does not override
+    private abstract static class ParseReceiver implements FrameDecoder.Receiver {
+        @Override
+        public void onLine(String line) {
+        }
+
+        @Override
+        public void onFrame(int opcode, byte[] data, int targetOffset, int targetLength,
+                            int payloadOffset, int payloadLength) {
+        }
+
+        @Override
+        public ByteBuffer onLargeMessage(int payloadLength) {
+            return null;
+        }
+
+        @Override
+        public void onLargeMessageEnd(ByteBuffer message) {
+        }
+
+        @Override
+        public void onLargeMessageDropped(ByteBuffer message) {
+        }
+
+        @Override
+        public void onOversized(String reason) {
+            throw new IllegalStateException(reason);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+    }
+
+    /**
+     * Every thread tries every name, in the same order, so each name is fought
+     * over by all threads at once. The old sequence (is it taken? then put) is
+     * replayed on a plain map for comparison; the real run goes through
+     * ClientHandler registration and ChatServer.claimUsername.
+     */
+    private static void claims(ChatOptions options) throws Exception {
+        int threads = options.getInt("threads", 256);
+        int names = options.getInt("names", 10_000);
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Map<String, Integer> checked = new java.util.concurrent.ConcurrentHashMap<>();
+        int[] checkedWins = new int[threads];
+        long checkThenPut = race(threads, thread -> {
+            for (int i = 0; i < names; i++) {
+                String name = "user" + i;
+                if (!checked.containsKey(name)) {
+                    checked.put(name, thread);
+                    checkedWins[thread]++;
+                }
+            }
+        });
+        int checkedTotal = Arrays.stream(checkedWins).sum();
+
+        ChatTransport sink = new ChatTransport() {
+            @Override
+            public void send(EncodedMessage message) {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        ClientHandler[][] handlers = new ClientHandler[threads][names];
+        long claimed = race(threads, thread -> {
+            for (int i = 0; i < names; i++) {
+                handlers[thread][i] = new ClientHandler(sink);
+                handlers[thread][i].handleLine("user" + i);
+            }
+        });
+        int owners = 0;
+        int broken = 0;
+        for (int i = 0; i < names; i++) {
+            int owned = 0;
+            for (int thread = 0; thread < threads; thread++) {
+                if (handlers[thread][i].getUsername() != null) {
+                    owned++;
+                    if (ChatServer.getClient("user" + i) != handlers[thread][i]) {
+                        broken++;
+                    }
+                }
+            }
+            owners += owned;
+            broken += owned == 1 ? 0 : 1;
+        }
+
+        report.println("=== CLAIM RACE (" + threads + " threads x " + names + " names) ===");
+        report.printf("%-20s %-14s %-16s %-14s%n", "sequence", "winners", "double claims", "claims/ms");
+        report.printf("%-20s %-14d %-16d %-14d%n", "check then put", checkedTotal, checkedTotal - names,
+                threads * (long) names * 1_000_000 / Math.max(1, checkThenPut));
+        report.printf("%-20s %-14d %-16d %-14d%n", "claimUsername", owners, owners - names,
+                threads * (long) names * 1_000_000 / Math.max(1, claimed));
+        report.println(broken == 0 ? "OK: every name has exactly one owner" : "FAILED: " + broken + " names without a single owner");
+    }
+
+    /**
+     * One /users reply at a large user count: the old full String.join over the
+     * username map, a cached roster page, a page right after a join and a leave
+     * (snapshot rebuilt), and a prefix search.
+     */
+    private static void roster(ChatOptions options) {
+        int users = options.getInt("users", 100_000);
+        int rounds = options.getInt("rounds", 200);
+        Map<String, Boolean> clientMap = new java.util.concurrent.ConcurrentHashMap<>();
+        UserRoster roster = new UserRoster(options.getInt("users-page", 100));
+        for (int i = 0; i < users; i++) {
+            clientMap.put("user" + i, Boolean.TRUE);
+            roster.add("user" + i);
+        }
+        String[] sink = new String[1];
+        Runnable joinAll = () -> sink[0] = "👥 Online users (" + clientMap.size() + "): " +
+                String.join(", ", new ArrayList<>(clientMap.keySet()));
+        Runnable cachedPage = () -> sink[0] = roster.page(1);
+        Runnable afterChurn = () -> {
+            roster.add("newcomer");
+            roster.remove("newcomer");
+            sink[0] = roster.page(1);
+        };
+        Runnable search = () -> sink[0] = roster.search("user4242");
+
+        System.out.println("=== /users BENCHMARK (" + users + " users) ===");
+        System.out.printf("%-24s %-18s %-14s%n", "reply", "bytes/request", "us/request");
+        String[] labels = {"join every name", "cached page", "page after join+leave", "prefix search"};
+        Runnable[] tasks = {joinAll, cachedPage, afterChurn, search};
+        for (int pass = 0; pass < 3; pass++) {
+            for (int i = 0; i < tasks.length; i++) {
+                long[] cost = measureAllocations(tasks[i], rounds);
+                if (pass == 2) {
+                    System.out.printf("%-24s %-18d %-14.2f%n", labels[i], cost[0],
+                            nanosPerRun(tasks[i], rounds) / 1000.0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reconnect storm: connector threads open every connection as fast as they
+     * can, sending the username right away, while one selector reads all of them
+     * and times each from connect to its "joined" confirmation (or refusal).
+     * Every join is also announced to the whole lobby, as it would be for real.
+     */
+    private static void storm(ChatOptions options) throws Exception {
+        String io = options.get("io", "nio");
+        int clients = options.getInt("clients", 3000);
+        int connectors = options.getInt("connectors", 8);
+        PrintStream report = System.out;
+        int port = startServer(options, io);
+
+        java.nio.channels.Selector selector = java.nio.channels.Selector.open();
+        Queue<Object[]> opened = new java.util.concurrent.ConcurrentLinkedQueue<>();
+        java.util.concurrent.atomic.AtomicInteger failedConnects = new java.util.concurrent.atomic.AtomicInteger();
+        long[] connectNanos = new long[1];
+        // Connect in the background so this thread is already reading when the first answers come
+        Thread connecting = new Thread(() -> {
+            try {
+                connectNanos[0] = race(connectors, thread -> connectStorm(port, clients, connectors, thread, opened,
+                        failedConnects, selector));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        connecting.start();
+
+
+        // Read everything; only the first line that settles the registration matters per client
+        byte[] joined = "✅ Welcome, ".getBytes(StandardCharsets.UTF_8);
+        byte[] busy = "Server is busy".getBytes(StandardCharsets.UTF_8);
+        LatencyHistogram latencyMicros = new LatencyHistogram();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        int registered = 0;
+        int refused = 0;
+        int closedEarly = 0;
+        long deadline = System.nanoTime() + 120_000_000_000L;
+        while (registered + refused + closedEarly + failedConnects.get() < clients && System.nanoTime() < deadline) {
+            Object[] next;
+            while ((next = opened.poll()) != null) {
+                ((SocketChannel) next[0]).register(selector, java.nio.channels.SelectionKey.OP_READ,
+                        new StormClient((Long) next[1]));
+            }
+            selector.select(100);
+            for (java.nio.channels.SelectionKey key : selector.selectedKeys()) {
+                StormClient client = (StormClient) key.attachment();
+                buffer.clear();
+                // Keep the end of the last read, so a marker split across reads is still found
+                buffer.put(client.tail, 0, client.tailLength);
+                int read;
+                try {
+                    read = ((SocketChannel) key.channel()).read(buffer);
+                } catch (IOException e) {
+                    read = -1;
+                }
+                if (read < 0) {
+                    key.cancel();
+                    if (!client.settled) {
+                        closedEarly++;
+                    }
+                    continue;
+                }
+                if (!client.settled) {
+                    if (indexOf(buffer.array(), buffer.position(), joined) >= 0) {
+                        client.settled = true;
+                        registered++;
+                        latencyMicros.record((System.nanoTime() - client.startNanos) / 1000);
+                    } else if (indexOf(buffer.array(), buffer.position(), busy) >= 0) {
+                        client.settled = true;
+                        refused++;
+                    } else {
+                        client.tailLength = Math.min(client.tail.length, buffer.position());
+                        System.arraycopy(buffer.array(), buffer.position() - client.tailLength, client.tail, 0,
+                                client.tailLength);
+                    }
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+        connecting.join();
+
+        report.println("=== RECONNECT STORM (io=" + io + ", " + clients + " clients, acceptors=" +
+                options.getInt("acceptors", 1) + ", register-workers=" + options.getInt("register-workers", 2) + ") ===");
+        report.printf("Connect phase        : %d ms (%d connects/s, %d failed)%n", connectNanos[0] / 1_000_000,
+                clients * 1_000_000_000L / Math.max(1, connectNanos[0]), failedConnects.get());
+        report.printf("Registered           : %d (p50 %.1f ms, p99 %.1f ms, max %.1f ms)%n", registered,
+                latencyMicros.percentile(50) / 1000.0, latencyMicros.percentile(99) / 1000.0, latencyMicros.max() / 1000.0);
+        report.printf("Refused (retry later): %d%n", refused);
+        report.printf("Unsettled / closed   : %d / %d%n",
+                clients - registered - refused - closedEarly - failedConnects.get(), closedEarly);
+        System.exit(0);
+    }
+
+    // One connector thread's share of the storm: connect, send the name, hand over to the reader
+    private static void connectStorm(int port, int clients, int connectors, int thread, Queue<Object[]> opened,
+                                     java.util.concurrent.atomic.AtomicInteger failed,
+                                     java.nio.channels.Selector selector) {
+        for (int i = thread; i < clients; i += connectors) {
+            long start = System.nanoTime();
+            try {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+                channel.write(ByteBuffer.wrap(("storm" + i + "\n").getBytes(StandardCharsets.UTF_8)));
+                channel.configureBlocking(false);
+                opened.add(new Object[] {channel, start});
+                selector.wakeup();
+            } catch (IOException e) {
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] pattern) {
+        outer:
+        for (int i = 0; i + pattern.length <= length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * TLS on the non-blocking core. Handshakes: each client connects, completes
+     * the handshake and reads the welcome line; "full" sessions are invalidated
+     * after use so every connect negotiates from scratch, "resumed" ones offer the
+     * previous session (a TLS 1.3 ticket). Messages: one sender and one receiver
+     * in the lobby, plain vs TLS, timed end to end, with the CPU the I/O loops
+     * spent per message.
+     */
+    private static void tls(ChatOptions options) throws Exception {
+        int handshakes = options.getInt("handshakes", 2000);
+        int threads = options.getInt("threads", 4);
+        int messages = options.getInt("messages", 50_000);
+        int size = options.getInt("size", 64);
+        PrintStream report = System.out;
+
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("chat-tls");
+        java.nio.file.Path keystore = dir.resolve("bench.p12");
+        Process keytool = new ProcessBuilder(
+                java.nio.file.Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "chat", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-validity", "2", "-storetype", "PKCS12",
+                "-keystore", keystore.toString(), "-storepass", "changeit")
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        if (keytool.waitFor() != 0) {
+            report.println("keytool failed; is the JDK (not just a JRE) installed?");
+            return;
+        }
+        int tlsPort;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            tlsPort = probe.getLocalPort();
+        }
+        options.set("tls-port", String.valueOf(tlsPort));
+        options.set("tls-keystore", keystore.toString());
+        options.set("queue-limit", options.get("queue-limit", String.valueOf(messages * 2)));
+        int port = startServer(options, "nio");
+
+        // The benchmark trusts exactly the certificate it just made
+        KeyStore trusted = KeyStore.getInstance("PKCS12");
+        try (InputStream in = java.nio.file.Files.newInputStream(keystore)) {
+            trusted.load(in, "changeit".toCharArray());
+        }
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(trusted);
+        SSLContext client = SSLContext.getInstance("TLS");
+        client.init(null, trust.getTrustManagers(), null);
+        SSLSocketFactory factory = client.getSocketFactory();
+
+        report.println("=== TLS BENCHMARK (" + threads + " client threads) ===");
+        report.printf("%-12s %-14s %-14s %-16s%n", "handshake", "handshakes/s", "us/handshake", "resumed (server)");
+        for (boolean resume : new boolean[] {false, true}) {
+            // Warm-up round, then the measured one
+            for (int pass = 0; pass < 2; pass++) {
+                int rounds = pass == 0 ? Math.min(handshakes, 200) : handshakes;
+                long resumedBefore = ChatMetrics.getTlsResumed();
+                long elapsed = race(threads, thread -> {
+                    for (int i = thread; i < rounds; i += threads) {
+                        try (SSLSocket socket = (SSLSocket) connect(factory, tlsPort)) {
+                            socket.startHandshake();
+                            new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+                            if (!resume) {
+                                socket.getSession().invalidate();
+                            }
+                        } catch (IOException e) {
+                            report.println("Handshake failed: " + e.getMessage());
+                        }
+                    }
+                });
+                if (pass == 1) {
+                    report.printf("%-12s %-14d %-14.1f %-16d%n", resume ? "resumed" : "full",
+                            rounds * 1_000_000_000L / Math.max(1, elapsed), elapsed / 1000.0 / rounds * threads,
+                            ChatMetrics.getTlsResumed() - resumedBefore);
+                }
+            }
+        }
+
+        report.println();
+        report.printf("%-12s %-14s %-14s %-16s%n", "messages", "messages/s", "us/message", "loop CPU us/msg");
+        byte[] padding = new byte[Math.max(1, size)];
+        Arrays.fill(padding, (byte) 'x');
+        String payload = new String(padding, StandardCharsets.US_ASCII);
+        for (int pass = 0; pass < 2; pass++) {
+            for (boolean secure : new boolean[] {false, true}) {
+                Socket receiver = secure ? connect(factory, tlsPort) : connect(null, port);
+                Socket sender = secure ? connect(factory, tlsPort) : connect(null, port);
+                String suffix = (secure ? "tls" : "tcp") + pass;
+                receiver.getOutputStream().write(("receiver" + suffix + "\n").getBytes(StandardCharsets.UTF_8));
+                OutputStream out = new BufferedOutputStream(sender.getOutputStream());
+                out.write(("sender" + suffix + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                BufferedReader in = new BufferedReader(new InputStreamReader(receiver.getInputStream(), StandardCharsets.UTF_8));
+                Thread drain = new Thread(() -> {
+                    try {
+                        new BufferedReader(new InputStreamReader(sender.getInputStream(), StandardCharsets.UTF_8))
+                                .lines().forEach(line -> { });
+                    } catch (UncheckedIOException | IOException e) {
+                        // closed at the end
+                    }
+                });
+                drain.setDaemon(true);
+                drain.start();
+                while (ChatServer.getClient("sender" + suffix) == null || ChatServer.getClient("receiver" + suffix) == null) {
+                    Thread.sleep(10);
+                }
+
+                long cpuBefore = loopCpuNanos();
+                long start = System.nanoTime();
+                Thread writer = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < messages; i++) {
+                            out.write((payload + "\n").getBytes(StandardCharsets.UTF_8));
+                        }
+                        out.flush();
+                    } catch (IOException e) {
+                        report.println("Send failed: " + e.getMessage());
+                    }
+                });
+                writer.start();
+                int received = 0;
+                String line;
+                while (received < messages && (line = in.readLine()) != null) {
+                    if (line.contains("sender" + suffix + ": ")) {
+                        received++;
+                    }
+                }
+                long elapsed = System.nanoTime() - start;
+                long cpu = loopCpuNanos() - cpuBefore;
+                writer.join();
+                if (pass == 1) {
+                    report.printf("%-12s %-14d %-14.2f %-16.2f%n", secure ? "tls" : "plain",
+                            received * 1_000_000_000L / Math.max(1, elapsed), elapsed / 1000.0 / Math.max(1, received),
+                            cpu / 1000.0 / Math.max(1, received));
+                }
+                sender.close();
+                receiver.close();
+                while (ChatServer.getUserCount() > 0) {
+                    Thread.sleep(10);
+                }
+            }
+        }
+        java.nio.file.Files.deleteIfExists(keystore);
+        java.nio.file.Files.deleteIfExists(dir);
+        System.exit(0);
+    }
+
+    /**
+     * One binary sender and many receivers in one room. Receivers are drained by a
+     * single selector thread into one reused buffer, and the sender keeps at most
+     * --window messages ahead of them, so allocation outside the benchmark's own two
+     * threads is the server's. The "string" row is the old path for the same line,
+     * measured on its own: decode the payload, format the chat line, encode it again.
+     */
+    private static void relay(ChatOptions options) throws Exception {
+        String io = options.get("io", "nio");
+        int receivers = options.getInt("receivers", 20);
+        int messages = options.getInt("messages", 200);
+        int window = Math.max(1, options.getInt("window", 8));
+        int[] sizes = parseCounts(options.get("sizes", "65536,262144,1048576"));
+        PrintStream report = System.out;
+        int largest = Arrays.stream(sizes).max().orElse(0);
+        options.set("relay-max-bytes", options.get("relay-max-bytes", String.valueOf(Math.max(largest, 1024 * 1024))));
+        options.set("queue-limit", options.get("queue-limit", String.valueOf(window * 4)));
+        int port = startServer(options, io);
+
+        java.nio.channels.Selector selector = java.nio.channels.Selector.open();
+        for (int i = 0; i < receivers; i++) {
+            SocketChannel channel = openRegistered(port, "receiver" + i);
+            channel.register(selector, java.nio.channels.SelectionKey.OP_READ);
+        }
+        SocketChannel sender = SocketChannel.open(new InetSocketAddress("localhost", port));
+        sender.socket().setTcpNoDelay(true);
+        sender.write(ByteBuffer.wrap("sender\n".getBytes(StandardCharsets.UTF_8)));
+        awaitUsers(receivers + 1);
+        sender.write(ByteBuffer.wrap("/binary\n".getBytes(StandardCharsets.UTF_8)));
+
+        // Count complete lines across all receivers; the sender's own output is drained too
+        java.util.concurrent.atomic.AtomicLong lines = new java.util.concurrent.atomic.AtomicLong();
+        Thread reader = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            try {
+                while (selector.isOpen()) {
+                    selector.select(100);
+                    for (java.nio.channels.SelectionKey key : selector.selectedKeys()) {
+                        buffer.clear();
+                        if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                            key.cancel();
+                            continue;
+                        }
+                        long newlines = 0;
+                        for (int i = 0; i < buffer.position(); i++) {
+                            if (buffer.get(i) == '\n') {
+                                newlines++;
+                            }
+                        }
+                        lines.addAndGet(newlines);
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException | java.nio.channels.ClosedSelectorException e) {
+                // closed at the end
+            }
+        }, "relay-reader");
+        reader.setDaemon(true);
+        reader.start();
+        Thread.sleep(500);
+        Thread senderDrain = new Thread(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            try {
+                while (sender.read(buffer.clear()) >= 0) {
+                    // the sender's own replies are not measured
+                }
+            } catch (IOException e) {
+                // closed at the end
+            }
+        }, "relay-sender-drain");
+        senderDrain.setDaemon(true);
+        senderDrain.start();
+
+        report.println("=== RELAY BENCHMARK (io=" + io + ", " + receivers + " receivers, " + messages +
+                " messages per size, window " + window + ") ===");
+        report.printf("%-9s %-8s %-12s %-14s %-18s %-16s%n", "size", "path", "messages/s", "delivered MB/s",
+                "alloc bytes/msg", "loop CPU us/msg");
+        long[] skip = {Thread.currentThread().getId(), reader.getId(), senderDrain.getId()};
+        for (int size : sizes) {
+            byte[] padding = new byte[size];
+            Arrays.fill(padding, (byte) 'x');
+            String payload = new String(padding, StandardCharsets.US_ASCII);
+            ByteBuffer frame = ByteBuffer.wrap(FrameDecoder.encode(FrameDecoder.MESSAGE, "", payload));
+
+            // Warm-up round, then the measured one
+            for (int pass = 0; pass < 2; pass++) {
+                int rounds = pass == 0 ? Math.min(messages, 20) : messages;
+                long base = lines.get();
+                long allocatedBefore = serverAllocatedBytes(skip);
+                long cpuBefore = loopCpuNanos();
+                long start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    while ((long) (i - window) * receivers > lines.get() - base) {
+                        java.util.concurrent.locks.LockSupport.parkNanos(50_000);
+                    }
+                    ByteBuffer out = frame.duplicate();
+                    while (out.hasRemaining()) {
+                        sender.write(out);
+                    }
+                }
+                long deadline = System.nanoTime() + 60_000_000_000L;
+                while (lines.get() - base < (long) rounds * receivers && System.nanoTime() < deadline) {
+                    java.util.concurrent.locks.LockSupport.parkNanos(50_000);
+                }
+                long elapsed = System.nanoTime() - start;
+                long cpu = loopCpuNanos() - cpuBefore;
+                long allocated = serverAllocatedBytes(skip) - allocatedBefore;
+                long delivered = lines.get() - base;
+                if (pass == 1) {
+                    report.printf("%-9d %-8s %-12d %-14.1f %-18d %-16.1f%s%n", size, "relay",
+                            rounds * 1_000_000_000L / Math.max(1, elapsed),
+                            delivered * (double) size * 1000 / Math.max(1, elapsed),
+                            allocated / rounds, cpu / 1000.0 / rounds,
+                            delivered < (long) rounds * receivers ? " (incomplete)" : "");
+                }
+            }
+
+            int[] sink = new int[1];
+            long[] cost = measureAllocations(() -> {
+                String text = new String(padding, StandardCharsets.UTF_8);
+                sink[0] += EncodedMessage.of("[12:00:00] sender: " + text).length();
+            }, Math.max(1, messages / 4));
+            report.printf("%-9d %-8s %-12s %-14s %-18d %-16s%n", size, "string", "-", "-", cost[0],
+                    cost[1] + " (decode+encode)");
+        }
+        report.println("Server: " + ChatMetrics.getRelayedMessages() + " messages relayed, " +
+                BufferPool.DIRECT.getIdleBytes() / 1024 + " KB idle in the direct buffer pool");
+        selector.close();
+        sender.close();
+        System.exit(0);
+    }
+
+    // Bytes allocated so far by every live thread except the given ones
+    private static long serverAllocatedBytes(long[] skip) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long id : threads.getAllThreadIds()) {
+            if (Arrays.stream(skip).noneMatch(skipped -> skipped == id)) {
+                total += Math.max(0, threads.getThreadAllocatedBytes(id));
+            }
+        }
+        return total;
+    }
+
+    // Client socket with Nagle off, so handshake round trips do not wait for delayed ACKs
+    private static Socket connect(SSLSocketFactory factory, int port) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.setTcpNoDelay(true);
+        return factory == null ? socket : factory.createSocket(socket, "localhost", port, true);
+    }
+
+    // CPU time used so far by the server's I/O loop threads
+    private static long loopCpuNanos() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (java.lang.management.ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null && info.getThreadName().startsWith("chat-io-")) {
+                total += Math.max(0, threads.getThreadCpuTime(info.getThreadId()));
+            }
+        }
+        return total;
+    }
+
+    // Run work(threadIndex) on that many threads released together; returns elapsed nanos
+    private static long race(int threads, java.util.function.IntConsumer work) throws InterruptedException {
+        java.util.concurrent.CountDownLatch ready = new java.util.concurrent.CountDownLatch(threads);
+        java.util.concurrent.CountDownLatch go = new java.util.concurrent.CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int index = i;
+            Thread worker = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                work.accept(index);
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    static long nanosPerRun(Runnable task, int rounds) {
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            task.run();
+        }
+        return (System.nanoTime() - start) / rounds;
+    }
+
+    // Returns {bytes allocated per run, microseconds per run} on the calling thread
+    static long[] measureAllocations(Runnable task, int rounds) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long startBytes = threads.getThreadAllocatedBytes(threadId);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            task.run();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - startBytes;
+        return new long[] {allocated / rounds, elapsed / rounds / 1000};
+    }
+
+    // Start ChatServer on a free port in this JVM, with its console output silenced
+    static int startServer(ChatOptions options, String io) throws Exception {
+        int port = options.getInt("port", 0);
+        if (port == 0) {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+        }
+        options.set("io", io);
+        options.set("port", String.valueOf(port));
+        options.set("history", options.get("history", "false"));
+        options.set("mailbox", options.get("mailbox", "false"));
+        options.set("rate-limit", options.get("rate-limit", "0"));
+        options.set("shutdown-timeout", options.get("shutdown-timeout", "0"));
+        String[] serverArgs = options.toArgs();
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Thread server = new Thread(() -> ChatServer.main(serverArgs), "chat-server");
+        server.setDaemon(true);
+        server.start();
+
+        // Wait for the listener to come up
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("localhost", port).close();
+                break;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        return port;
+    }
+
+    static SocketChannel openRegistered(int port, String username) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        channel.write(ByteBuffer.wrap((username + "\n").getBytes(StandardCharsets.UTF_8)));
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    static void awaitUsers(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (ChatServer.getUserCount() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static int platformThreads() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    static int[] parseCounts(String value) {
+        String[] parts = value.split(",");
+        int[] counts = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            counts[i] = Integer.parseInt(parts[i].trim());
+        }
+        return counts;
+    }
+
+    // ========== ChatBenchmark.StormClient ==========
+    /**
+     * One storm connection as seen by the reading selector
+     */
+    private static final class StormClient {
+        final long startNanos;
+        final byte[] tail = new byte[32];
+        int tailLength;
+        boolean settled;
+
+        StormClient(long startNanos) {
+            this.startNanos = startNanos;
+        }
+    }
+}
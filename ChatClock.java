@@ -0,0 +1,41 @@
+// ========== ChatClock.java ==========
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared wall clock for chat timestamps
+ * The "HH:mm:ss" string only changes once per second, so a daemon ticker
+ * formats it once per second and every message just reads the cached value.
+ */
+final class ChatClock {
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    private static volatile String currentTime = LocalTime.now().format(FORMAT);
+
+    static {
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "chat-clock");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // First tick just after the next second boundary, then once per second
+        long untilNextSecond = 1_000_000_000L - LocalTime.now().getNano();
+        ticker.scheduleAtFixedRate(ChatClock::tick, untilNextSecond + 1_000_000, 1_000_000_000L,
+                TimeUnit.NANOSECONDS);
+    }
+
+    private ChatClock() {
+    }
+
+    private static void tick() {
+        currentTime = LocalTime.now().format(FORMAT);
+    }
+
+    // Current time as HH:mm:ss (second resolution, no allocation)
+    static String currentTime() {
+        return currentTime;
+    }
+}
@@ -0,0 +1,543 @@
+// ========== ChatCluster.java ==========
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Cluster mode: several ChatServer nodes acting as one chat
+ * Every node listens on --cluster-port and dials every node in --peers, so each
+ * pair is joined by two TCP connections, one per direction: apart from the
+ * accepting side's HELLO, a node only writes to the links it dialed and only
+ * reads from the ones it accepted. Frames are encoded once and queued to every
+ * link; a writer per link sends everything queued with one flush. The same
+ * --peers list can be given to every node, since a node that dials itself
+ * recognises its own HELLO and drops that link.
+ *
+ * Usernames form a directory replicated by CLAIM/RELEASE frames. A link that
+ * (re)connects first sends a snapshot of the node's users. When two nodes claim
+ * the same name at once, the earlier registration wins (ties go to the lower
+ * node id); every node applies the same rule, and the loser is disconnected.
+ * A node's names are dropped when its connection to us is lost.
+ *
+ * The cluster port binds to --cluster-host (loopback unless configured) and only
+ * takes frames from peers that know --cluster-secret: the accepting side's HELLO
+ * carries a random challenge, and the dialer's HELLO must carry its HMAC-SHA256
+ * under the secret. Frames are authenticated this way but not encrypted, so
+ * links between hosts belong on a private network.
+ *
+ * A link whose queue overflows is dropped rather than losing frames: a lost
+ * RELEASE would leave a name claimed on the peer for good. The peer forgets our
+ * names with the connection, and the reconnect sends a fresh snapshot.
+ *
+ * Frame: [byte type] then fields, strings as [int length][UTF-8]
+ * - HELLO   nodeId, challenge (accepting side) or proof (dialer)
+ * - CLAIM   username, registeredAt (epoch ms)
+ * - RELEASE username
+ * - ROOM    room, text, record (append to history as well)
+ * - PRIVATE username, sender, text
+ */
+class ChatCluster {
+    private static final byte HELLO = 1;
+    private static final byte CLAIM = 2;
+    private static final byte RELEASE = 3;
+    private static final byte ROOM = 4;
+    private static final byte PRIVATE = 5;
+    private static final int MAX_BATCH = 256;
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final int HELLO_TIMEOUT_MILLIS = 5000;
+    private static final int CHALLENGE_BYTES = 32;
+    // Queued (and compared by identity) to make a link's writer drop the connection
+    private static final byte[] RESYNC = new byte[0];
+
+    private final String nodeId;
+    private final String bindHost;
+    private final int port;
+    private final byte[] secret;
+    private final int queueLimit;
+    private final SecureRandom random = new SecureRandom();
+    private final List<PeerLink> links = new ArrayList<>();
+    // Users on other nodes
+    private final Map<String, RemoteUser> directory = new ConcurrentHashMap<>();
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder framesReceived = new LongAdder();
+    private final LongAdder framesDropped = new LongAdder();
+
+    private ChatCluster(String nodeId, String bindHost, int port, byte[] secret, int queueLimit) {
+        this.nodeId = nodeId;
+        this.bindHost = bindHost;
+        this.port = port;
+        this.secret = secret;
+        this.queueLimit = queueLimit;
+    }
+
+    // Cluster configured from --cluster-port, --cluster-host, --cluster-secret, --peers, --node-id
+    // and --cluster-queue; null when off
+    static ChatCluster start(ChatOptions options) throws IOException {
+        int port = options.getInt("cluster-port", 0);
+        if (port <= 0) {
+            return null;
+        }
+        String secret = options.get("cluster-secret", "");
+        if (secret.isEmpty()) {
+            throw new IOException("--cluster-port needs --cluster-secret (the same on every node)");
+        }
+        String nodeId = options.get("node-id", defaultNodeId(port));
+        ChatCluster cluster = new ChatCluster(nodeId, options.get("cluster-host", "127.0.0.1"), port,
+                secret.getBytes(StandardCharsets.UTF_8), options.getInt("cluster-queue", 65536));
+        cluster.listen();
+        for (String peer : options.get("peers", "").split(",")) {
+            peer = peer.trim();
+            if (!peer.isEmpty()) {
+                cluster.connect(peer);
+            }
+        }
+        System.out.println("Cluster node " + nodeId + " on " + cluster.bindHost + ":" + port + ", dialing " +
+                cluster.links.size() + " peer address(es)");
+        return cluster;
+    }
+
+    private static String defaultNodeId(int port) {
+        try {
+            return InetAddress.getLocalHost().getHostAddress() + ":" + port;
+        } catch (UnknownHostException e) {
+            return "localhost:" + port;
+        }
+    }
+
+    private void listen() throws IOException {
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(bindHost));
+        daemon(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    daemon(() -> readFrom(socket), "chat-cluster-in");
+                } catch (IOException e) {
+                    ChatLog.error("Cluster accept failed: " + e.getMessage());
+                }
+            }
+        }, "chat-cluster-accept");
+    }
+
+    // Dial a peer ("host:port")
+    private void connect(String peer) throws IOException {
+        int colon = peer.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IOException("Bad peer address (expected host:port): " + peer);
+        }
+        PeerLink link = new PeerLink(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+        links.add(link);
+        daemon(link, "chat-cluster-" + peer);
+    }
+
+    private static void daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // A user registered here
+    void claim(String username, long registeredAt) {
+        publish(frame(CLAIM, out -> {
+            writeString(out, username);
+            out.writeLong(registeredAt);
+        }));
+    }
+
+    // A user registered here has left
+    void release(String username) {
+        publish(frame(RELEASE, out -> writeString(out, username)));
+    }
+
+    // A message for a room, to be shown to that room's members on every node
+    void relayRoom(String room, String text, boolean record) {
+        publish(frame(ROOM, out -> {
+            writeString(out, room);
+            writeString(out, text);
+            out.writeBoolean(record);
+        }));
+    }
+
+    /**
+     * Send a private message to a user on another node
+     * @return false if no node has that user
+     */
+    boolean relayPrivate(String username, String sender, String text) {
+        RemoteUser user = directory.get(username);
+        PeerLink owner = user == null ? null : linkTo(user.node);
+        if (owner == null) {
+            return false;
+        }
+        owner.offer(frame(PRIVATE, out -> {
+            writeString(out, username);
+            writeString(out, sender);
+            writeString(out, text);
+        }));
+        return true;
+    }
+
+    boolean isClaimed(String username) {
+        return directory.containsKey(username);
+    }
+
+    // Names of users on other nodes
+    Collection<String> getRemoteUsers() {
+        return directory.keySet();
+    }
+
+    int getConnectedPeers() {
+        int connected = 0;
+        for (PeerLink link : links) {
+            if (link.node != null) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    long getFramesSent() {
+        return framesSent.sum();
+    }
+
+    long getFramesReceived() {
+        return framesReceived.sum();
+    }
+
+    long getFramesDropped() {
+        return framesDropped.sum();
+    }
+
+    private PeerLink linkTo(String node) {
+        for (PeerLink link : links) {
+            if (node.equals(link.node)) {
+                return link;
+            }
+        }
+        return null;
+    }
+
+    private void publish(byte[] frame) {
+        for (PeerLink link : links) {
+            link.offer(frame);
+        }
+    }
+
+    // Reader for one accepted connection; its peer's names live as long as it does
+    private void readFrom(Socket socket) {
+        InboundSession session = new InboundSession();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            // Tell the dialer who we are, so it can route to us (or notice it dialed itself),
+            // and challenge it to prove it knows the secret before reading anything else
+            byte[] challenge = new byte[CHALLENGE_BYTES];
+            random.nextBytes(challenge);
+            socket.getOutputStream().write(frame(HELLO, out -> {
+                writeString(out, nodeId);
+                writeBytes(out, challenge);
+            }));
+            socket.setSoTimeout(HELLO_TIMEOUT_MILLIS);
+            if (in.readByte() != HELLO) {
+                throw new IOException("Expected HELLO");
+            }
+            String node = readString(in);
+            if (!MessageDigest.isEqual(readBytes(in), prove(challenge, node))) {
+                ChatLog.warn("Cluster connection from " + socket.getRemoteSocketAddress() +
+                        " refused: wrong --cluster-secret");
+                return;
+            }
+            socket.setSoTimeout(0);
+            session.node = node;
+            ChatLog.info("Cluster peer " + session.node + " connected");
+            while (true) {
+                byte type = in.readByte();
+                framesReceived.increment();
+                switch (type) {
+                    case CLAIM:
+                        onClaim(session, readString(in), in.readLong());
+                        break;
+                    case RELEASE:
+                        String released = readString(in);
+                        directory.computeIfPresent(released, (name, user) -> user.link == session ? forget(name) : user);
+                        break;
+                    case ROOM:
+                        String room = readString(in);
+                        String text = readString(in);
+                        ChatServer.deliverRemoteRoomMessage(room, text, in.readBoolean());
+                        break;
+                    case PRIVATE:
+                        ChatServer.deliverRemotePrivateMessage(readString(in), readString(in), readString(in));
+                        break;
+                    default:
+                        throw new IOException("Unknown cluster frame type " + type);
+                }
+            }
+        } catch (IOException e) {
+            if (session.node != null) {
+                ChatLog.info("Cluster peer " + session.node + " disconnected");
+            }
+        } finally {
+            for (String name : directory.keySet()) {
+                directory.computeIfPresent(name, (key, user) -> user.link == session ? forget(key) : user);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    private void onClaim(InboundSession session, String username, long registeredAt) {
+        RemoteUser claim = new RemoteUser(session.node, registeredAt, session);
+        ClientHandler local = ChatServer.getClient(username);
+        if (local != null) {
+            if (!claim.winsOver(local.getRegisteredAt(), nodeId)) {
+                // Ours is older; the other node will drop its user when it sees our claim
+                return;
+            }
+            ChatLog.warn("Username '" + username + "' was claimed first on " + session.node);
+            local.sendMessage("❌ Username '" + username + "' is already in use on another server. Disconnecting.");
+            local.disconnected(ChatMetrics.DisconnectReason.NAME_CONFLICT);
+        }
+        directory.compute(username, (name, current) -> {
+            if (current == null) {
+                // Roster updates happen under the directory's per-key lock, in the same order
+                ChatServer.roster().add(name);
+                return claim;
+            }
+            return current.link == session || claim.winsOver(current.registeredAt, current.node) ? claim : current;
+        });
+    }
+
+    // Drop a remote user from the roster; returns null to remove the directory entry
+    private static RemoteUser forget(String username) {
+        ChatServer.roster().remove(username);
+        return null;
+    }
+
+    // ---- Encoding ----
+
+    private interface FrameWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private byte[] frame(byte type, FrameWriter fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            fields.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // HMAC of the challenge and the dialer's node id under the shared secret
+    private byte[] prove(byte[] challenge, String node) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(challenge);
+            return mac.doFinal(node.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is always available", e);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        out.writeShort(value.length);
+        out.write(value);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 16 * 1024 * 1024) {
+            throw new IOException("Bad cluster string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // ========== ChatCluster.RemoteUser ==========
+    /**
+     * Directory entry for a user registered on another node
+     */
+    private static final class RemoteUser {
+        final String node;
+        final long registeredAt;
+        // Connection the claim arrived on
+        final InboundSession link;
+
+        RemoteUser(String node, long registeredAt, InboundSession link) {
+            this.node = node;
+            this.registeredAt = registeredAt;
+            this.link = link;
+        }
+
+        // First registration wins; ties go to the lower node id
+        boolean winsOver(long otherRegisteredAt, String otherNode) {
+            if (registeredAt != otherRegisteredAt) {
+                return registeredAt < otherRegisteredAt;
+            }
+            return node.compareTo(otherNode) < 0;
+        }
+    }
+
+    // ========== ChatCluster.InboundSession ==========
+    /**
+     * One accepted peer connection
+     */
+    private static final class InboundSession {
+        volatile String node;
+    }
+
+    // ========== ChatCluster.PeerLink ==========
+    /**
+     * Outbound connection to one peer, redialed until it sticks
+     * Frames are only queued while the link is up; on (re)connect the peer gets
+     * a fresh snapshot of our users instead of a backlog.
+     */
+    private final class PeerLink implements Runnable {
+        private final String host;
+        private final int peerPort;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(queueLimit);
+        // Peer's node id while the link is up, and its connection
+        private volatile String node;
+        private volatile Socket connection;
+
+        PeerLink(String host, int peerPort) {
+            this.host = host;
+            this.peerPort = peerPort;
+        }
+
+        void offer(byte[] frame) {
+            if (node == null || queue.offer(frame)) {
+                return;
+            }
+            synchronized (this) {
+                if (node == null) {
+                    return;
+                }
+                // Peer too far behind: resync through a new connection instead of dropping frames
+                ChatLog.warn("Cluster link to " + node + " fell " + queueLimit + " frames behind; reconnecting");
+                node = null;
+                framesDropped.add(queue.size() + 1);
+                queue.clear();
+                queue.offer(RESYNC);
+            }
+            Socket current = connection;
+            try {
+                // Unblocks a writer stuck on a peer that stopped reading
+                if (current != null) {
+                    current.close();
+                }
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean wasUp = false;
+            while (true) {
+                try (Socket socket = new Socket()) {
+                    connection = socket;
+                    socket.connect(new InetSocketAddress(host, peerPort), (int) RECONNECT_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    String peerNode = readHello(socket, in);
+                    if (peerNode.equals(nodeId)) {
+                        // Our own address in --peers
+                        return;
+                    }
+                    byte[] proof = prove(readBytes(in), nodeId);
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                    node = peerNode;
+                    wasUp = true;
+                    ChatLog.info("Cluster link to " + node + " (" + host + ":" + peerPort + ") up");
+
+                    out.write(frame(HELLO, data -> {
+                        writeString(data, nodeId);
+                        writeBytes(data, proof);
+                    }));
+                    for (ClientHandler user : ChatServer.getRegisteredClients()) {
+                        String name = user.getUsername();
+                        if (name == null) {
+                            // Claimed a moment ago; its own CLAIM is already queued
+                            continue;
+                        }
+                        out.write(frame(CLAIM, data -> {
+                            writeString(data, name);
+                            data.writeLong(user.getRegisteredAt());
+                        }));
+                    }
+                    out.flush();
+
+                    List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+                    while (true) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                        for (byte[] frame : batch) {
+                            if (frame == RESYNC) {
+                                throw new IOException("queue overflow");
+                            }
+                            out.write(frame);
+                        }
+                        out.flush();
+                        framesSent.add(batch.size());
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    if (wasUp) {
+                        ChatLog.warn("Cluster link to " + host + ":" + peerPort + " lost: " + e.getMessage());
+                        wasUp = false;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                synchronized (this) {
+                    node = null;
+                    queue.clear();
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        // The accepting side speaks first: one HELLO with its node id (its challenge follows)
+        private String readHello(Socket socket, DataInputStream in) throws IOException {
+            socket.setSoTimeout(HELLO_TIMEOUT_MILLIS);
+            if (in.readByte() != HELLO) {
+                throw new IOException("Expected HELLO from " + host + ":" + peerPort);
+            }
+            String peerNode = readString(in);
+            socket.setSoTimeout(0);
+            return peerNode;
+        }
+    }
+}
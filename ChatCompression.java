@@ -0,0 +1,143 @@
+// ========== ChatCompression.java ==========
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-message output compression (negotiated with /compress)
+ * Each outbound line is deflated on its own, primed with a preset dictionary of
+ * the server's usual phrases, instead of as one stream per connection. That
+ * costs some ratio but lets EncodedMessage deflate a broadcast once and share
+ * the result with every compressing recipient, the same way it shares the
+ * plain bytes.
+ *
+ * Frame: [int header][bytes] where the header's top bit says "deflated" and
+ * the low 31 bits give the byte count. Deflated bytes are raw deflate (no zlib
+ * header) of the UTF-8 line including its '\n', using DICTIONARY. Lines shorter
+ * than --compress-min-bytes are sent stored, still framed.
+ *
+ * Options: --compress-level=1 (1 fastest .. 9 smallest), --compress-min-bytes=64
+ */
+final class ChatCompression {
+    // Most frequent material last: deflate reaches it with the shortest distances
+    static final byte[] DICTIONARY = (
+            "because really think about would could there their people thanks please sorry " +
+            "what when where which while with have this that from they them then than just like " +
+            "know good great yeah okay sure will your you're it's don't can't the and for are but not " +
+            "📭 No users online. 🏠 Rooms (📊 Server stats 📜 End of history📜 Last  messages in #" +
+            "❌ User ' not found or offline. 📬 User ' is offline. Your message will be delivered when they return." +
+            " private message(s) received while you were offline:\n" +
+            "✅ You are now in # users).\n👥 Online users (" +
+            "[PRIVATE to [PRIVATE from  left the chat\n🚪  left #👋  joined the chat!\n👋  joined #" +
+            "] [00:00:00] [12:34:56] [23:59:59] [1").getBytes(StandardCharsets.UTF_8);
+
+    private static final int DEFLATED_FLAG = 0x80000000;
+    private static final int LEVEL = Math.max(1, Math.min(9, ChatServer.options().getInt("compress-level", 1)));
+    private static final int MIN_BYTES = ChatServer.options().getInt("compress-min-bytes", 64);
+
+    // Deflaters hold native memory, so one per (writer or loop) thread rather than per call
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(LEVEL, true));
+
+    private static final LongAdder framedMessages = new LongAdder();
+    private static final LongAdder plainBytes = new LongAdder();
+    private static final LongAdder framedBytes = new LongAdder();
+
+    private ChatCompression() {
+    }
+
+    // Frame one encoded line (deflated unless it is too short to gain anything)
+    static byte[] frame(byte[] line) {
+        return frame(line, deflaters.get(), DICTIONARY, MIN_BYTES);
+    }
+
+    // Same with explicit settings (ChatBenchmark); dictionary may be null
+    static byte[] frame(byte[] line, Deflater deflater, byte[] dictionary, int minBytes) {
+        byte[] frame = line.length < minBytes ? null : deflate(line, deflater, dictionary);
+        if (frame == null) {
+            frame = new byte[4 + line.length];
+            putHeader(frame, line.length);
+            System.arraycopy(line, 0, frame, 4, line.length);
+        }
+        return frame;
+    }
+
+    // Deflated frame, or null when deflating does not make it smaller
+    private static byte[] deflate(byte[] line, Deflater deflater, byte[] dictionary) {
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(line);
+        deflater.finish();
+        byte[] frame = new byte[4 + line.length];
+        int length = 4;
+        while (!deflater.finished()) {
+            if (length == frame.length) {
+                return null;
+            }
+            length += deflater.deflate(frame, length, frame.length - length);
+        }
+        if (length >= frame.length) {
+            return null;
+        }
+        putHeader(frame, (length - 4) | DEFLATED_FLAG);
+        return Arrays.copyOf(frame, length);
+    }
+
+    private static void putHeader(byte[] frame, int header) {
+        frame[0] = (byte) (header >>> 24);
+        frame[1] = (byte) (header >>> 16);
+        frame[2] = (byte) (header >>> 8);
+        frame[3] = (byte) header;
+    }
+
+    /**
+     * Client side: decode one frame body back into the line bytes
+     * @param header the frame's int header
+     * @param inflater a raw (nowrap) Inflater, reused across frames
+     */
+    static byte[] unframe(int header, byte[] body, Inflater inflater) throws DataFormatException {
+        if ((header & DEFLATED_FLAG) == 0) {
+            return body;
+        }
+        // Raw deflate carries no dictionary id, so the dictionary goes in up front
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(body);
+        byte[] line = new byte[Math.max(64, body.length * 4)];
+        int length = 0;
+        while (!inflater.finished()) {
+            if (length == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            int inflated = inflater.inflate(line, length, line.length - length);
+            if (inflated == 0 && inflater.needsInput()) {
+                throw new DataFormatException("Truncated compressed frame");
+            }
+            length += inflated;
+        }
+        return Arrays.copyOf(line, length);
+    }
+
+    // One framed message handed to a compressing connection
+    static void recordSent(int plainLength, int framedLength) {
+        framedMessages.increment();
+        plainBytes.add(plainLength);
+        framedBytes.add(framedLength);
+    }
+
+    static long getFramedMessages() {
+        return framedMessages.sum();
+    }
+
+    static long getPlainBytes() {
+        return plainBytes.sum();
+    }
+
+    static long getFramedBytes() {
+        return framedBytes.sum();
+    }
+}
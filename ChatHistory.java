@@ -0,0 +1,378 @@
+// ========== ChatHistory.java ==========
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent chat history
+ * Room messages are appended to segment files (segment-000000.log, ...) that roll
+ * at a size limit. A memory-mapped index holds one fixed-size entry per message
+ * (segment, offset, length, room hash, previous entry of the same room), so the
+ * last N messages of a room are found by following that room's chain back from
+ * its newest entry and reading only those records - never by rescanning segment
+ * files or other rooms' entries. Appends go to the page cache; a background task
+ * fsyncs dirty files at most once per --history-fsync-ms.
+ *
+ * Segment record: [short roomLength][room UTF-8][int textLength][text UTF-8]
+ * Index file:     [long entryCount] then entries of
+ *                 [int segment][int offset][int length][int roomHash][long previous (-1 = none)]
+ * The index is mapped in chunks of CHUNK_ENTRIES entries, so it can grow past 2 GB.
+ * On open, trailing entries that do not match a complete record are dropped and
+ * complete records past the last good entry are indexed again, so a crash that
+ * persisted the header but not the entries (or the other way round) loses at most
+ * a torn record.
+ */
+class ChatHistory implements Closeable {
+    private static final String INDEX_FILE = "rooms.idx";
+    private static final int INDEX_HEADER_BYTES = 8;
+    private static final int INDEX_ENTRY_BYTES = 24;
+    private static final int INITIAL_INDEX_ENTRIES = 1 << 16;
+    private static final int CHUNK_SHIFT = 22;
+    private static final int CHUNK_ENTRIES = 1 << CHUNK_SHIFT;
+    // Offsets are stored as unsigned ints
+    private static final long MAX_SEGMENT_MB = 4095;
+    private static final int MAX_ROOM_BYTES = 0xFFFF;
+
+    private final Path directory;
+    private final long segmentLimit;
+    private final ScheduledExecutorService syncer;
+    // Segments opened for positional reads, shared by all readers
+    private final Map<Integer, FileChannel> readers = new ConcurrentHashMap<>();
+
+    // Guarded by this
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer header;
+    // Index mappings; replaced (never modified in place) when the last one grows
+    private volatile MappedByteBuffer[] chunks;
+    private volatile long count;
+    // Newest entry per room hash, rebuilt from the index on open
+    private final Map<Integer, Long> heads = new HashMap<>();
+    private FileChannel segment;
+    private int segmentId;
+    private long segmentSize;
+    private boolean dirty;
+
+    private ChatHistory(Path directory, long segmentLimit, long fsyncMillis) throws IOException {
+        this.directory = directory;
+        this.segmentLimit = segmentLimit;
+        Files.createDirectories(directory);
+
+        indexChannel = FileChannel.open(directory.resolve(INDEX_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_BYTES);
+        count = header.getLong(0);
+        chunks = new MappedByteBuffer[0];
+        for (long mapped = 0; mapped <= count; mapped += CHUNK_ENTRIES) {
+            mapChunk((int) (mapped >>> CHUNK_SHIFT), count - mapped + 1);
+        }
+        // The header may have reached the disk without the entries it counts
+        while (count > 0 && !isIntact(count - 1)) {
+            count--;
+        }
+        header.putLong(0, count);
+        for (long i = 0; i < count; i++) {
+            heads.put(chunk(i).getInt(entryPosition(i) + 12), i);
+        }
+
+        long validSize = 0;
+        if (count > 0) {
+            MappedByteBuffer entries = chunk(count - 1);
+            int last = entryPosition(count - 1);
+            segmentId = entries.getInt(last);
+            validSize = (entries.getInt(last + 4) & 0xffffffffL) + entries.getInt(last + 8);
+        }
+        recover(validSize);
+
+        syncer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "chat-history-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(this::sync, fsyncMillis, fsyncMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // History configured from --history-dir, --history-segment-mb (1 to 4095) and --history-fsync-ms
+    static ChatHistory open(ChatOptions options) throws IOException {
+        long segmentMb = options.getLong("history-segment-mb", 64);
+        if (segmentMb < 1 || segmentMb > MAX_SEGMENT_MB) {
+            ChatLog.warn("--history-segment-mb must be between 1 and " + MAX_SEGMENT_MB + "; using " +
+                    Math.max(1, Math.min(segmentMb, MAX_SEGMENT_MB)));
+            segmentMb = Math.max(1, Math.min(segmentMb, MAX_SEGMENT_MB));
+        }
+        return new ChatHistory(Paths.get(options.get("history-dir", "chat-history")),
+                segmentMb * 1024 * 1024,
+                Math.max(1, options.getLong("history-fsync-ms", 1000)));
+    }
+
+    // Record one formatted room message
+    synchronized void append(String room, String message) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        if (roomBytes.length == 0 || roomBytes.length > MAX_ROOM_BYTES) {
+            return;
+        }
+        int length = 2 + roomBytes.length + 4 + text.length;
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putShort((short) roomBytes.length).put(roomBytes).putInt(text.length).put(text).flip();
+
+        try {
+            if (segmentSize > 0 && segmentSize + length > segmentLimit) {
+                roll();
+            }
+            long offset = segmentSize;
+            while (record.hasRemaining()) {
+                segment.write(record, offset + record.position());
+            }
+            segmentSize += length;
+            putEntry(segmentId, (int) offset, length, room.hashCode());
+            dirty = true;
+        } catch (IOException e) {
+            ChatLog.error("History append failed: " + e.getMessage());
+        }
+    }
+
+    // Last `limit` messages of a room, oldest first
+    List<String> recent(String room, int limit) {
+        MappedByteBuffer[] mapped;
+        long entry;
+        int roomHash = room.hashCode();
+        synchronized (this) {
+            mapped = chunks;
+            entry = heads.getOrDefault(roomHash, -1L);
+        }
+        List<String> found = new ArrayList<>();
+        try {
+            while (entry >= 0 && found.size() < limit) {
+                MappedByteBuffer entries = mapped[(int) (entry >>> CHUNK_SHIFT)];
+                int position = entryPosition(entry);
+                String message = read(entries.getInt(position), entries.getInt(position + 4) & 0xffffffffL,
+                        entries.getInt(position + 8), room);
+                if (message != null) {
+                    found.add(message);
+                }
+                entry = entries.getLong(position + 16);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            ChatLog.error("History read failed: " + e.getMessage());
+        }
+        Collections.reverse(found);
+        return found;
+    }
+
+    private String read(int id, long offset, int length, String room) throws IOException {
+        FileChannel channel = readers.computeIfAbsent(id, key -> {
+            try {
+                return FileChannel.open(segmentPath(key), StandardOpenOption.READ);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        ByteBuffer record = ByteBuffer.allocate(length);
+        while (record.hasRemaining()) {
+            if (channel.read(record, offset + record.position()) < 0) {
+                return null;
+            }
+        }
+        record.flip();
+        byte[] roomBytes = new byte[record.getShort() & 0xFFFF];
+        record.get(roomBytes);
+        if (!room.equals(new String(roomBytes, StandardCharsets.UTF_8))) {
+            // Room hash collision
+            return null;
+        }
+        byte[] text = new byte[record.getInt()];
+        record.get(text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    // Caller holds the lock (or is the constructor); publishes the entry only after it is complete
+    private void putEntry(int id, int offset, int length, int roomHash) throws IOException {
+        ensureIndexCapacity();
+        MappedByteBuffer entries = chunk(count);
+        int position = entryPosition(count);
+        entries.putInt(position, id);
+        entries.putInt(position + 4, offset);
+        entries.putInt(position + 8, length);
+        entries.putInt(position + 12, roomHash);
+        entries.putLong(position + 16, heads.getOrDefault(roomHash, -1L));
+        heads.put(roomHash, count);
+        count++;
+        header.putLong(0, count);
+    }
+
+    // Whether entry i points at a complete record of its room (constructor only)
+    private boolean isIntact(long i) throws IOException {
+        MappedByteBuffer entries = chunk(i);
+        int position = entryPosition(i);
+        int id = entries.getInt(position);
+        int length = entries.getInt(position + 8);
+        if (id < 0 || length <= 0 || !Files.exists(segmentPath(id))) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(segmentPath(id), StandardOpenOption.READ)) {
+            ByteBuffer record = readRecord(channel, entries.getInt(position + 4) & 0xffffffffL, channel.size());
+            return record != null && record.capacity() == length
+                    && roomOf(record).hashCode() == entries.getInt(position + 12);
+        }
+    }
+
+    // Index the complete records after the last good entry (from segmentId at position on, across
+    // later segments), then cut off a torn tail and reopen the segment for appends (constructor only)
+    private void recover(long position) throws IOException {
+        int recovered = 0;
+        while (true) {
+            segment = openSegment(segmentId);
+            long end = segment.size();
+            ByteBuffer record;
+            while ((record = readRecord(segment, position, end)) != null) {
+                putEntry(segmentId, (int) position, record.capacity(), roomOf(record).hashCode());
+                position += record.capacity();
+                recovered++;
+            }
+            if (position < end || !Files.exists(segmentPath(segmentId + 1))) {
+                break;
+            }
+            segment.close();
+            segmentId++;
+            position = 0;
+        }
+        segment.truncate(position);
+        segmentSize = position;
+        if (recovered > 0) {
+            ChatLog.info("Recovered " + recovered + " history records missing from the index");
+        }
+    }
+
+    // The record at offset, or null unless a whole one (with a room name) lies before end
+    private static ByteBuffer readRecord(FileChannel channel, long offset, long end) throws IOException {
+        ByteBuffer prefix = ByteBuffer.allocate(2);
+        if (end - offset < 2 + 4 || !readAt(channel, prefix, offset)) {
+            return null;
+        }
+        int roomLength = prefix.getShort(0) & 0xFFFF;
+        ByteBuffer textLength = ByteBuffer.allocate(4);
+        if (roomLength == 0 || end - offset < 2 + roomLength + 4
+                || !readAt(channel, textLength, offset + 2 + roomLength)) {
+            return null;
+        }
+        long length = 2L + roomLength + 4 + textLength.getInt(0);
+        if (textLength.getInt(0) < 0 || length > end - offset || length > Integer.MAX_VALUE) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.allocate((int) length);
+        return readAt(channel, record, offset) ? record.flip() : null;
+    }
+
+    private static boolean readAt(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String roomOf(ByteBuffer record) {
+        return new String(record.array(), 2, record.getShort(0) & 0xFFFF, StandardCharsets.UTF_8);
+    }
+
+    // Caller holds the lock
+    private void roll() throws IOException {
+        segment.force(false);
+        segment.close();
+        segmentId++;
+        segment = openSegment(segmentId);
+        segment.truncate(0);
+        segmentSize = 0;
+    }
+
+    // Caller holds the lock; maps the next chunk, or remaps the last one at twice the size, when full
+    private void ensureIndexCapacity() throws IOException {
+        int chunkIndex = (int) (count >>> CHUNK_SHIFT);
+        if (chunkIndex == chunks.length) {
+            chunks[chunkIndex - 1].force();
+            mapChunk(chunkIndex, 1);
+        } else if (entryPosition(count) + INDEX_ENTRY_BYTES > chunks[chunkIndex].capacity()) {
+            chunks[chunkIndex].force();
+            mapChunk(chunkIndex, (count & (CHUNK_ENTRIES - 1)) + 1);
+        }
+    }
+
+    // Map chunk chunkIndex with room for at least `entries` entries (doubling, up to CHUNK_ENTRIES)
+    private void mapChunk(int chunkIndex, long entries) throws IOException {
+        long capacity = chunkIndex < chunks.length ? chunks[chunkIndex].capacity() / INDEX_ENTRY_BYTES * 2
+                : INITIAL_INDEX_ENTRIES;
+        while (capacity < entries) {
+            capacity *= 2;
+        }
+        capacity = Math.min(capacity, CHUNK_ENTRIES);
+        MappedByteBuffer mapping = indexChannel.map(FileChannel.MapMode.READ_WRITE,
+                INDEX_HEADER_BYTES + (long) chunkIndex * CHUNK_ENTRIES * INDEX_ENTRY_BYTES,
+                capacity * INDEX_ENTRY_BYTES);
+        MappedByteBuffer[] grown = Arrays.copyOf(chunks, Math.max(chunks.length, chunkIndex + 1));
+        grown[chunkIndex] = mapping;
+        chunks = grown;
+    }
+
+    // Batched durability: one fsync per interval, only if something was written
+    private void sync() {
+        FileChannel current;
+        MappedByteBuffer entries;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            current = segment;
+            entries = chunks[chunks.length - 1];
+        }
+        try {
+            current.force(false);
+            entries.force();
+            header.force();
+        } catch (IOException e) {
+            // Segment rolled (and was forced) in the meantime
+        }
+    }
+
+    private FileChannel openSegment(int id) throws IOException {
+        return FileChannel.open(segmentPath(id),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private Path segmentPath(int id) {
+        return directory.resolve(String.format("segment-%06d.log", id));
+    }
+
+    private MappedByteBuffer chunk(long entry) {
+        return chunks[(int) (entry >>> CHUNK_SHIFT)];
+    }
+
+    // Position of an entry within its chunk
+    private static int entryPosition(long entry) {
+        return (int) (entry & (CHUNK_ENTRIES - 1)) * INDEX_ENTRY_BYTES;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        syncer.shutdown();
+        segment.force(false);
+        for (MappedByteBuffer entries : chunks) {
+            entries.force();
+        }
+        header.force();
+        segment.close();
+        for (FileChannel reader : readers.values()) {
+            reader.close();
+        }
+        indexChannel.close();
+    }
+}
@@ -0,0 +1,294 @@
+// ========== ChatLoadTest.java ==========
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Chat Server load generator
+ * Opens thousands of simulated chat clients (non-blocking, a few threads in
+ * total), spreads them over rooms, and has them send a mix of room messages and
+ * /private messages at a fixed rate. Every message carries its send time, so
+ * each delivery records end-to-end latency into a LatencyHistogram.
+ *
+ * Usage: java ChatLoadTest [--key=value ...]
+ * - --host=localhost --port=12345 : Server to load (any I/O mode)
+ * - --server=thread|virtual|nio   : Or start that server in-process instead
+ * - --clients=1000 --rooms=10     : Simulated users, spread round-robin over rooms
+ * - --rate=1                      : Messages per second per client
+ * - --private-ratio=0.2           : Share of messages sent as /private
+ * - --warmup=5 --duration=30      : Seconds before recording, seconds recorded
+ * - --threads=2                   : Client-side selector threads
+ */
+public class ChatLoadTest {
+    private static final String MARKER = "LT ";
+
+    private final ChatOptions options;
+    private final String prefix;
+    private final int clients;
+    private final int rooms;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final AtomicInteger registered = new AtomicInteger();
+    private volatile long recordFrom = Long.MAX_VALUE;
+
+    ChatLoadTest(ChatOptions options) {
+        this.options = options;
+        this.prefix = "load" + (System.currentTimeMillis() % 100000) + "_";
+        this.clients = options.getInt("clients", 1000);
+        this.rooms = Math.max(1, options.getInt("rooms", 10));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new ChatLoadTest(ChatOptions.parse(args)).run();
+        System.exit(0);
+    }
+
+    void run() throws Exception {
+        String host = options.get("host", "localhost");
+        int port = options.getInt("port", 12345);
+        String server = options.get("server", null);
+        PrintStream report = System.out;
+        if (server != null) {
+            port = ChatBenchmark.startServer(options, server);
+        }
+        double rate = Double.parseDouble(options.get("rate", "1"));
+        double privateRatio = Double.parseDouble(options.get("private-ratio", "0.2"));
+        int warmup = options.getInt("warmup", 5);
+        int duration = options.getInt("duration", 30);
+
+        report.println("=== CHAT LOAD TEST ===");
+        report.println("Target: " + host + ":" + port + (server != null ? " (in-process, io=" + server + ")" : ""));
+        report.println("Clients: " + clients + " in " + rooms + " rooms, " + rate + " msg/s each, " +
+                (int) (privateRatio * 100) + "% private");
+
+        LoadLoop[] loops = new LoadLoop[Math.max(1, options.getInt("threads", 2))];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new LoadLoop(rate, privateRatio);
+        }
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        for (int i = 0; i < clients; i++) {
+            SocketChannel channel = SocketChannel.open(address);
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            loops[i % loops.length].add(new SimClient(i, channel));
+        }
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (registered.get() < clients && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        report.println("Registered: " + registered.get() + "/" + clients);
+        for (LoadLoop loop : loops) {
+            loop.sending = true;
+        }
+
+        Thread.sleep(warmup * 1000L);
+        latency.reset();
+        long sentStart = sent.sum();
+        long receivedStart = received.sum();
+        recordFrom = System.nanoTime();
+
+        for (int second = 1; second <= duration; second++) {
+            long sentBefore = sent.sum();
+            long receivedBefore = received.sum();
+            Thread.sleep(1000);
+            report.printf("[%3ds] sent %7d/s  delivered %8d/s  p99 %6.2f ms%n", second,
+                    sent.sum() - sentBefore, received.sum() - receivedBefore, latency.percentile(99) / 1000.0);
+        }
+
+        long totalSent = sent.sum() - sentStart;
+        long totalReceived = received.sum() - receivedStart;
+        report.println("==========================================");
+        report.printf("Throughput: %.0f msgs/s sent, %.0f deliveries/s%n",
+                totalSent / (double) duration, totalReceived / (double) duration);
+        report.printf("Latency (ms): p50 %.2f  p99 %.2f  p99.9 %.2f  max %.2f  (%d samples)%n",
+                latency.percentile(50) / 1000.0, latency.percentile(99) / 1000.0,
+                latency.percentile(99.9) / 1000.0, latency.max() / 1000.0, latency.getCount());
+    }
+
+    // Record a delivered line if it carries a marker from this run
+    private void onLine(String line) {
+        int marker = line.indexOf(MARKER);
+        if (marker < 0) {
+            return;
+        }
+        int end = line.indexOf(' ', marker + MARKER.length());
+        try {
+            long sentAt = Long.parseLong(line.substring(marker + MARKER.length(), end < 0 ? line.length() : end));
+            if (sentAt >= recordFrom) {
+                latency.record((System.nanoTime() - sentAt) / 1000);
+            }
+            received.increment();
+        } catch (NumberFormatException e) {
+            // Someone else's text
+        }
+    }
+
+    // ========== ChatLoadTest.SimClient ==========
+    /**
+     * One simulated user: reads lines, writes small commands
+     */
+    private final class SimClient {
+        final int id;
+        final SocketChannel channel;
+        final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        ByteBuffer pendingWrite;
+        boolean ready;
+
+        SimClient(int id, SocketChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+
+        void read(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Server closed connection for client " + id);
+            }
+            byte[] data = buffer.array();
+            int start = 0;
+            for (int i = 0; i < buffer.position(); i++) {
+                if (data[i] == '\n') {
+                    partial.write(data, start, i - start);
+                    handle(new String(partial.toByteArray(), StandardCharsets.UTF_8));
+                    partial.reset();
+                    start = i + 1;
+                }
+            }
+            partial.write(data, start, buffer.position() - start);
+        }
+
+        private void handle(String line) throws IOException {
+            if (!ready && line.startsWith("✅ Welcome,")) {
+                ready = true;
+                registered.incrementAndGet();
+                int room = id % rooms;
+                if (room > 0) {
+                    send("/join load-room" + room);
+                }
+            } else if (!ready && line.contains("already taken")) {
+                send(prefix + id + "_" + ThreadLocalRandom.current().nextInt(1000));
+            } else if (line.equals("/ping")) {
+                // Heartbeat: keeps quiet clients (low --rate) from being dropped as idle
+                send("/pong");
+            } else {
+                onLine(line);
+            }
+        }
+
+        void send(String line) throws IOException {
+            ByteBuffer data = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+            if (pendingWrite != null) {
+                // Still backed up: append to what is waiting
+                ByteBuffer merged = ByteBuffer.allocate(pendingWrite.remaining() + data.remaining());
+                merged.put(pendingWrite).put(data).flip();
+                pendingWrite = merged;
+                return;
+            }
+            channel.write(data);
+            if (data.hasRemaining()) {
+                pendingWrite = data;
+            }
+        }
+
+        void flushPending() throws IOException {
+            if (pendingWrite != null) {
+                channel.write(pendingWrite);
+                if (!pendingWrite.hasRemaining()) {
+                    pendingWrite = null;
+                }
+            }
+        }
+    }
+
+    // ========== ChatLoadTest.LoadLoop ==========
+    /**
+     * Selector thread driving a share of the simulated clients
+     */
+    private final class LoadLoop implements Runnable {
+        final Selector selector;
+        final List<SimClient> members = new ArrayList<>();
+        final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        final double rate;
+        final double privateRatio;
+        volatile boolean sending;
+        int nextSender;
+
+        LoadLoop(double rate, double privateRatio) throws IOException {
+            this.selector = Selector.open();
+            this.rate = rate;
+            this.privateRatio = privateRatio;
+        }
+
+        void add(SimClient client) throws IOException {
+            client.channel.register(selector, SelectionKey.OP_READ, client);
+            members.add(client);
+            client.send(prefix + client.id);
+        }
+
+        @Override
+        public void run() {
+            long last = System.nanoTime();
+            double due = 0;
+            while (true) {
+                try {
+                    selector.select(1);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        SimClient client = (SimClient) key.attachment();
+                        try {
+                            client.read(readBuffer);
+                        } catch (IOException e) {
+                            key.cancel();
+                            System.err.println(e.getMessage());
+                        }
+                    }
+
+                    long now = System.nanoTime();
+                    if (sending) {
+                        // Spread this loop's total rate evenly over time, round-robin over clients
+                        due += (now - last) / 1e9 * rate * members.size();
+                        while (due >= 1) {
+                            due--;
+                            sendOne(members.get(nextSender), now);
+                            nextSender = (nextSender + 1) % members.size();
+                        }
+                    }
+                    last = now;
+                    for (SimClient client : members) {
+                        client.flushPending();
+                    }
+                } catch (IOException e) {
+                    System.err.println("Load loop error: " + e.getMessage());
+                }
+            }
+        }
+
+        private void sendOne(SimClient client, long now) throws IOException {
+            if (!client.ready) {
+                return;
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < privateRatio) {
+                client.send("/private " + prefix + random.nextInt(clients) + " " + MARKER + now);
+            } else {
+                client.send(MARKER + now + " hello from " + client.id);
+            }
+            sent.increment();
+        }
+    }
+}
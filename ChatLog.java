@@ -0,0 +1,208 @@
+// ========== ChatLog.java ==========
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous server log
+ * Handler threads and I/O loops only claim a slot in a fixed-size ring buffer;
+ * a single daemon consumer formats and prints. Nothing on the message path ever
+ * waits for the console: when the ring is full the entry is dropped and counted.
+ *
+ * Options: --log-level=debug|info|warn|error, --log-messages=true|false (echo
+ * every chat message), --log-buffer=8192 (ring size, rounded up to a power of two)
+ */
+final class ChatLog {
+    enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static volatile Level threshold = Level.INFO;
+    private static volatile boolean echoMessages = true;
+    private static volatile Ring ring = new Ring(8192);
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        // Give the consumer a moment to print the tail on exit
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000), "chat-log-flush"));
+    }
+
+    private ChatLog() {
+    }
+
+    // Apply startup options (called once from ChatServer.main)
+    static void configure(ChatOptions options) {
+        try {
+            threshold = Level.valueOf(options.get("log-level", "info").trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            threshold = Level.INFO;
+        }
+        echoMessages = options.getBoolean("log-messages", true);
+        int size = options.getInt("log-buffer", 8192);
+        if (size != ring.capacity()) {
+            Ring previous = ring;
+            ring = new Ring(size);
+            previous.drain();
+        }
+    }
+
+    static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    static void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    // Chat line echo (already timestamped); off with --log-messages=false
+    static void message(String formattedMessage) {
+        if (echoMessages) {
+            if (!ring.offer(null, null, formattedMessage)) {
+                dropped.increment();
+            }
+        }
+    }
+
+    static boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    private static void log(Level level, String message) {
+        if (isEnabled(level) && !ring.offer(level, ChatClock.currentTime(), message)) {
+            dropped.increment();
+        }
+    }
+
+    // Entries lost because the ring was full
+    static long getDropped() {
+        return dropped.sum();
+    }
+
+    // Wait (up to timeoutMillis) until everything logged so far is printed
+    static void flush(long timeoutMillis) {
+        ring.awaitEmpty(timeoutMillis);
+    }
+
+    // ========== ChatLog.Ring ==========
+    /**
+     * Multi-producer, single-consumer ring
+     * Producers claim a sequence with a CAS on tail, fill the slot and publish
+     * the sequence number; the consumer prints slots in sequence order.
+     */
+    private static final class Ring implements Runnable {
+        private final int mask;
+        private final Level[] levels;
+        private final String[] times;
+        private final String[] messages;
+        private final AtomicLongArray published;
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head;
+        private volatile boolean retired;
+
+        Ring(int requestedSize) {
+            int size = Integer.highestOneBit(Math.max(16, requestedSize - 1)) << 1;
+            mask = size - 1;
+            levels = new Level[size];
+            times = new String[size];
+            messages = new String[size];
+            published = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                published.set(i, -1);
+            }
+            Thread consumer = new Thread(this, "chat-log");
+            consumer.setDaemon(true);
+            consumer.start();
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        boolean offer(Level level, String time, String message) {
+            long sequence;
+            do {
+                sequence = tail.get();
+                if (sequence - head > mask) {
+                    return false;
+                }
+            } while (!tail.compareAndSet(sequence, sequence + 1));
+
+            int slot = (int) (sequence & mask);
+            levels[slot] = level;
+            times[slot] = time;
+            messages[slot] = message;
+            published.set(slot, sequence);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (true) {
+                if (printNext()) {
+                    idle = 0;
+                } else if (retired) {
+                    return;
+                } else if (++idle < 100) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(1_000_000);
+                }
+            }
+        }
+
+        // Print the entry at head if it has been published
+        private boolean printNext() {
+            long sequence = head;
+            int slot = (int) (sequence & mask);
+            if (published.get(slot) != sequence) {
+                return false;
+            }
+            Level level = levels[slot];
+            String time = times[slot];
+            String message = messages[slot];
+            levels[slot] = null;
+            times[slot] = null;
+            messages[slot] = null;
+            head = sequence + 1;
+
+            if (level == null) {
+                System.out.println(message);
+            } else if (level.compareTo(Level.WARN) >= 0) {
+                print(System.err, level, time, message);
+            } else {
+                print(System.out, level, time, message);
+            }
+            return true;
+        }
+
+        private static void print(PrintStream out, Level level, String time, String message) {
+            if (level == Level.INFO) {
+                out.println("[" + time + "] " + message);
+            } else {
+                out.println("[" + time + "] " + level + " " + message);
+            }
+        }
+
+        void awaitEmpty(long timeoutMillis) {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (head < tail.get() && System.currentTimeMillis() < deadline) {
+                LockSupport.parkNanos(1_000_000);
+            }
+        }
+
+        // Print what is left and stop the consumer
+        void drain() {
+            awaitEmpty(1000);
+            retired = true;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+// ========== ChatMetrics.java ==========
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process server metrics
+ * Counters are LongAdders and distributions are LatencyHistograms, so recording
+ * from handler threads and I/O loops never takes a lock. Gauges (connections,
+ * queue depth, ...) are read from their owners only when a report is rendered.
+ * Reported by the /stats command and, with --metrics-port, as plain text
+ * (Prometheus exposition format) at http://<metrics-host>:<port>/metrics.
+ */
+final class ChatMetrics {
+    // Why a connection ended; recorded once per connection
+    enum DisconnectReason { QUIT, CLOSED, ERROR, SLOW_CONSUMER, BAD_INPUT, NAME_CONFLICT, FLOODING, IDLE, SHUTDOWN, BUSY }
+
+    // Commands counted individually; anything else counts as "unknown"
+    private static final String[] COMMANDS = {
+            "/users", "/private", "/join", "/leave", "/rooms", "/history", "/stats", "/binary", "/compress", "/quit", "/help"
+    };
+
+    private static final long startMillis = System.currentTimeMillis();
+    private static final LongAdder accepted = new LongAdder();
+    private static final LongAdder registrations = new LongAdder();
+    private static final LongAdder chatMessages = new LongAdder();
+    private static final LongAdder privateMessages = new LongAdder();
+    private static final LongAdder unknownCommands = new LongAdder();
+    private static final LongAdder throttled = new LongAdder();
+    private static final LongAdder heartbeats = new LongAdder();
+    private static final LongAdder webSocketUpgrades = new LongAdder();
+    private static final LongAdder tlsHandshakes = new LongAdder();
+    private static final LongAdder tlsResumed = new LongAdder();
+    private static final LongAdder registrationsRefused = new LongAdder();
+    private static final LongAdder relayedMessages = new LongAdder();
+    private static final LongAdder relayedBytes = new LongAdder();
+    private static final Map<String, LongAdder> commands = new LinkedHashMap<>();
+    private static final Map<DisconnectReason, LongAdder> disconnects = new EnumMap<>(DisconnectReason.class);
+    // Recipients per broadcast, and the time to hand one message to all of them
+    private static final LatencyHistogram fanOut = new LatencyHistogram();
+    private static final LatencyHistogram sendMicros = new LatencyHistogram();
+    private static final LatencyHistogram registerMicros = new LatencyHistogram();
+
+    static {
+        // Filled once and only read afterwards, so plain maps are safe to share
+        for (String command : COMMANDS) {
+            commands.put(command, new LongAdder());
+        }
+        for (DisconnectReason reason : DisconnectReason.values()) {
+            disconnects.put(reason, new LongAdder());
+        }
+    }
+
+    private ChatMetrics() {
+    }
+
+    static void accepted() {
+        accepted.increment();
+    }
+
+    static void registered() {
+        registrations.increment();
+    }
+
+    static void chatMessage() {
+        chatMessages.increment();
+    }
+
+    static void privateMessage() {
+        privateMessages.increment();
+    }
+
+    static void command(String name) {
+        LongAdder counter = commands.get(name);
+        (counter != null ? counter : unknownCommands).increment();
+    }
+
+    // One inbound message dropped by the rate limiter
+    static void throttled() {
+        throttled.increment();
+    }
+
+    // A WebSocket handshake completed
+    static void webSocketUpgraded() {
+        webSocketUpgrades.increment();
+    }
+
+    // A TLS handshake completed, resumed from an earlier session or not
+    static void tlsHandshake(boolean resumed) {
+        tlsHandshakes.increment();
+        if (resumed) {
+            tlsResumed.increment();
+        }
+    }
+
+    static long getTlsHandshakes() {
+        return tlsHandshakes.sum();
+    }
+
+    static long getTlsResumed() {
+        return tlsResumed.sum();
+    }
+
+    // A registration turned away by the AdmissionController
+    static void registrationRefused() {
+        registrationsRefused.increment();
+    }
+
+    // Time from queueing a registration to having it done
+    static void registrationLatency(long micros) {
+        registerMicros.record(micros);
+    }
+
+    // A large message sent to its room from a pooled buffer (see FrameDecoder)
+    static void relayed(int bytes) {
+        relayedMessages.increment();
+        relayedBytes.add(bytes);
+    }
+
+    static long getRelayedMessages() {
+        return relayedMessages.sum();
+    }
+
+    // One /ping sent to a quiet connection
+    static void heartbeat() {
+        heartbeats.increment();
+    }
+
+    static void disconnected(DisconnectReason reason) {
+        disconnects.get(reason).increment();
+    }
+
+    // One broadcast: how many recipients, and how long since it started (System.nanoTime)
+    static void broadcast(int recipients, long startNanos) {
+        fanOut.record(recipients);
+        sendMicros.record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    // Short human-readable summary (/stats)
+    static String summary() {
+        long uptime = (System.currentTimeMillis() - startMillis) / 1000;
+        StringJoiner lines = new StringJoiner("\n");
+        lines.add("📊 Server stats (up " + uptime / 3600 + "h " + uptime / 60 % 60 + "m " + uptime % 60 + "s):");
+        lines.add("  Connections: " + ChatServer.getConnectionCount() + " open, " + accepted.sum() +
+                " accepted, " + ChatServer.getUserCount() + " users, " + ChatServer.getRoomCount() + " rooms");
+        lines.add("  Messages: " + chatMessages.sum() + " room, " + privateMessages.sum() + " private, " +
+                registrations.sum() + " registrations, " + throttled.sum() + " throttled");
+        AdmissionController admission = ChatServer.admission();
+        if (admission != null) {
+            lines.add("  Registration: p50 " + registerMicros.percentile(50) + " µs, p99 " +
+                    registerMicros.percentile(99) + " µs, max " + registerMicros.max() + " µs, " +
+                    admission.getWaiting() + " queued, " + registrationsRefused.sum() + " refused");
+        }
+        lines.add("  Fan-out: p50 " + fanOut.percentile(50) + ", p99 " + fanOut.percentile(99) +
+                ", max " + fanOut.max() + " recipients");
+        lines.add("  Send time: p50 " + sendMicros.percentile(50) + " µs, p99 " + sendMicros.percentile(99) +
+                " µs, max " + sendMicros.max() + " µs");
+        lines.add("  Outbound: " + OutboundQueue.getTotalDepth() + " queued, " + OutboundQueue.getTotalDropped() +
+                " dropped, " + OutboundQueue.getMessagesWritten() + " written in " +
+                OutboundQueue.getWriteCalls() + " writes");
+        if (relayedMessages.sum() > 0) {
+            lines.add("  Relayed: " + relayedMessages.sum() + " large messages, " + relayedBytes.sum() + " bytes");
+        }
+        lines.add("  Buffers: " + describe("direct", BufferPool.DIRECT) + "; " + describe("heap", BufferPool.HEAP));
+        long plain = ChatCompression.getPlainBytes();
+        if (plain > 0) {
+            lines.add("  Compression: " + ChatCompression.getFramedMessages() + " messages, " + plain + " -> " +
+                    ChatCompression.getFramedBytes() + " bytes (" +
+                    ChatCompression.getFramedBytes() * 100 / plain + "%)");
+        }
+        StringJoiner reasons = new StringJoiner(", ");
+        for (Map.Entry<DisconnectReason, LongAdder> entry : disconnects.entrySet()) {
+            reasons.add(entry.getKey().name().toLowerCase() + " " + entry.getValue().sum());
+        }
+        lines.add("  Disconnects: " + reasons);
+        lines.add("  Heartbeats: " + heartbeats.sum() + " pings sent");
+        StringJoiner counts = new StringJoiner(", ");
+        for (Map.Entry<String, LongAdder> entry : commands.entrySet()) {
+            counts.add(entry.getKey() + " " + entry.getValue().sum());
+        }
+        lines.add("  Commands: " + counts + ", unknown " + unknownCommands.sum());
+        ChatCluster cluster = ChatServer.cluster();
+        if (cluster != null) {
+            lines.add("  Cluster: " + cluster.getConnectedPeers() + " peers, " + cluster.getRemoteUsers().size() +
+                    " remote users, " + cluster.getFramesSent() + " frames sent, " +
+                    cluster.getFramesReceived() + " received, " + cluster.getFramesDropped() + " dropped");
+        }
+        return lines.toString();
+    }
+
+    // Everything, one sample per line (HTTP scrape)
+    static String render() {
+        StringBuilder out = new StringBuilder(4096);
+        gauge(out, "chat_uptime_seconds", (System.currentTimeMillis() - startMillis) / 1000);
+        gauge(out, "chat_connections", ChatServer.getConnectionCount());
+        gauge(out, "chat_users", ChatServer.getUserCount());
+        gauge(out, "chat_rooms", ChatServer.getRoomCount());
+        counter(out, "chat_connections_accepted_total", accepted.sum());
+        counter(out, "chat_websocket_upgrades_total", webSocketUpgrades.sum());
+        counter(out, "chat_tls_handshakes_total", tlsHandshakes.sum());
+        counter(out, "chat_tls_resumed_total", tlsResumed.sum());
+        counter(out, "chat_registrations_total", registrations.sum());
+        counter(out, "chat_registrations_refused_total", registrationsRefused.sum());
+        AdmissionController admission = ChatServer.admission();
+        if (admission != null) {
+            gauge(out, "chat_registrations_queued", admission.getWaiting());
+        }
+        counter(out, "chat_messages_total", chatMessages.sum());
+        counter(out, "chat_private_messages_total", privateMessages.sum());
+        counter(out, "chat_relayed_messages_total", relayedMessages.sum());
+        counter(out, "chat_relayed_bytes_total", relayedBytes.sum());
+        out.append("# TYPE chat_buffer_pool_hits_total counter\n");
+        sample(out, "chat_buffer_pool_hits_total{pool=\"direct\"}", BufferPool.DIRECT.getHits());
+        sample(out, "chat_buffer_pool_hits_total{pool=\"heap\"}", BufferPool.HEAP.getHits());
+        out.append("# TYPE chat_buffer_pool_misses_total counter\n");
+        sample(out, "chat_buffer_pool_misses_total{pool=\"direct\"}", BufferPool.DIRECT.getMisses());
+        sample(out, "chat_buffer_pool_misses_total{pool=\"heap\"}", BufferPool.HEAP.getMisses());
+        out.append("# TYPE chat_buffer_pool_idle_bytes gauge\n");
+        sample(out, "chat_buffer_pool_idle_bytes{pool=\"direct\"}", BufferPool.DIRECT.getIdleBytes());
+        sample(out, "chat_buffer_pool_idle_bytes{pool=\"heap\"}", BufferPool.HEAP.getIdleBytes());
+        out.append("# TYPE chat_buffer_pool_allocated_bytes gauge\n");
+        sample(out, "chat_buffer_pool_allocated_bytes{pool=\"direct\"}", BufferPool.DIRECT.getAllocatedBytes());
+        sample(out, "chat_buffer_pool_allocated_bytes{pool=\"heap\"}", BufferPool.HEAP.getAllocatedBytes());
+        counter(out, "chat_throttled_messages_total", throttled.sum());
+        counter(out, "chat_heartbeats_sent_total", heartbeats.sum());
+        TimerWheel timers = ChatServer.timers();
+        if (timers != null) {
+            gauge(out, "chat_timers_pending", timers.size());
+        }
+        out.append("# TYPE chat_commands_total counter\n");
+        for (Map.Entry<String, LongAdder> entry : commands.entrySet()) {
+            sample(out, "chat_commands_total{command=\"" + entry.getKey().substring(1) + "\"}", entry.getValue().sum());
+        }
+        sample(out, "chat_commands_total{command=\"unknown\"}", unknownCommands.sum());
+        out.append("# TYPE chat_disconnects_total counter\n");
+        for (Map.Entry<DisconnectReason, LongAdder> entry : disconnects.entrySet()) {
+            sample(out, "chat_disconnects_total{reason=\"" + entry.getKey().name().toLowerCase() + "\"}",
+                    entry.getValue().sum());
+        }
+        summary(out, "chat_broadcast_fanout", fanOut);
+        summary(out, "chat_broadcast_send_microseconds", sendMicros);
+        summary(out, "chat_registration_microseconds", registerMicros);
+        gauge(out, "chat_outbound_queued", OutboundQueue.getTotalDepth());
+        counter(out, "chat_outbound_dropped_total", OutboundQueue.getTotalDropped());
+        counter(out, "chat_slow_consumer_disconnects_total", OutboundQueue.getSlowConsumerDisconnects());
+        counter(out, "chat_socket_writes_total", OutboundQueue.getWriteCalls());
+        counter(out, "chat_messages_written_total", OutboundQueue.getMessagesWritten());
+        counter(out, "chat_log_dropped_total", ChatLog.getDropped());
+        counter(out, "chat_compressed_messages_total", ChatCompression.getFramedMessages());
+        counter(out, "chat_compressed_plain_bytes_total", ChatCompression.getPlainBytes());
+        counter(out, "chat_compressed_wire_bytes_total", ChatCompression.getFramedBytes());
+        gauge(out, "chat_mailbox_queued", ChatServer.getMailboxQueued());
+        ChatCluster cluster = ChatServer.cluster();
+        if (cluster != null) {
+            gauge(out, "chat_cluster_peers", cluster.getConnectedPeers());
+            gauge(out, "chat_cluster_remote_users", cluster.getRemoteUsers().size());
+            counter(out, "chat_cluster_frames_sent_total", cluster.getFramesSent());
+            counter(out, "chat_cluster_frames_received_total", cluster.getFramesReceived());
+            counter(out, "chat_cluster_frames_dropped_total", cluster.getFramesDropped());
+        }
+        return out.toString();
+    }
+
+    // "direct 12 hits, 3 misses, 1024 KB allocated, 992 KB idle"
+    private static String describe(String name, BufferPool pool) {
+        return name + " " + pool.getHits() + " hits, " + pool.getMisses() + " misses, " +
+                pool.getAllocatedBytes() / 1024 + " KB allocated, " + pool.getIdleBytes() / 1024 + " KB idle";
+    }
+
+    private static void gauge(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        sample(out, name, value);
+    }
+
+    private static void counter(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" counter\n");
+        sample(out, name, value);
+    }
+
+    private static void summary(StringBuilder out, String name, LatencyHistogram histogram) {
+        out.append("# TYPE ").append(name).append(" summary\n");
+        sample(out, name + "{quantile=\"0.5\"}", histogram.percentile(50));
+        sample(out, name + "{quantile=\"0.99\"}", histogram.percentile(99));
+        sample(out, name + "{quantile=\"0.999\"}", histogram.percentile(99.9));
+        sample(out, name + "{quantile=\"1\"}", histogram.max());
+        sample(out, name + "_count", histogram.getCount());
+    }
+
+    private static void sample(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    // Serve /metrics on --metrics-port (off when 0), bound to --metrics-host (loopback by default)
+    static void startHttp(ChatOptions options) throws IOException {
+        int port = options.getInt("metrics-port", 0);
+        if (port <= 0) {
+            return;
+        }
+        HttpServer server = HttpServer.create(
+                new InetSocketAddress(options.get("metrics-host", "127.0.0.1"), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "chat-metrics");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        System.out.println("Metrics at http://" + server.getAddress().getHostString() + ":" + port + "/metrics");
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.*;
+
+/**
+ * Chat Server startup options
+ * Parses "--key=value" (or bare "--flag") arguments; anything not given on the
+ * command line falls back to the system property "chat.<key>", then the default.
+ */
+public class ChatOptions {
+    private final Map<String, String> values = new HashMap<>();
+
+    public static ChatOptions parse(String[] args) {
+        ChatOptions options = new ChatOptions();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                System.err.println("Ignoring unknown argument: " + arg);
+                continue;
+            }
+            String option = arg.substring(2);
+            int eq = option.indexOf('=');
+            if (eq < 0) {
+                options.values.put(option, "true");
+            } else {
+                options.values.put(option.substring(0, eq), option.substring(eq + 1));
+            }
+        }
+        return options;
+    }
+
+    public String get(String key, String defaultValue) {
+        String value = values.get(key);
+        if (value == null) {
+            value = System.getProperty("chat." + key);
+        }
+        return value != null ? value : defaultValue;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid number for --" + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid number for --" + key + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = get(key, null);
+        return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+    }
+
+    public void set(String key, String value) {
+        values.put(key, value);
+    }
+
+    // Back to "--key=value" arguments (for starting an in-process server)
+    public String[] toArgs() {
+        List<String> args = new ArrayList<>();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            args.add("--" + entry.getKey() + "=" + entry.getValue());
+        }
+        return args.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,95 @@
+// ========== ChatRoom.java ==========
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A chat room (channel)
+ * Members are spread over a few independently locked shards so concurrent
+ * joins/leaves in a busy room do not contend on one set. Fan-out only walks
+ * this room's members, so its cost is proportional to the room size.
+ */
+class ChatRoom {
+    private static final int SHARDS = 8;
+
+    private final String name;
+    // Shards are created on first use so small rooms stay small
+    private final AtomicReferenceArray<Set<ClientHandler>> shards = new AtomicReferenceArray<>(SHARDS);
+    private final AtomicInteger size = new AtomicInteger();
+
+    ChatRoom(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    void add(ClientHandler member) {
+        if (shard(member, true).add(member)) {
+            size.incrementAndGet();
+        }
+    }
+
+    void remove(ClientHandler member) {
+        Set<ClientHandler> shard = shard(member, false);
+        if (shard != null && shard.remove(member)) {
+            size.decrementAndGet();
+        }
+    }
+
+    private Set<ClientHandler> shard(ClientHandler member, boolean create) {
+        int index = (System.identityHashCode(member) & 0x7fffffff) % SHARDS;
+        Set<ClientHandler> shard = shards.get(index);
+        if (shard == null && create) {
+            shards.compareAndSet(index, null, ConcurrentHashMap.newKeySet());
+            shard = shards.get(index);
+        }
+        return shard;
+    }
+
+    // Send one encoded message to every member except the sender; returns the recipient count
+    int broadcast(EncodedMessage message, ClientHandler sender) {
+        int recipients = 0;
+        for (int i = 0; i < SHARDS; i++) {
+            Set<ClientHandler> shard = shards.get(i);
+            if (shard == null) {
+                continue;
+            }
+            for (ClientHandler member : shard) {
+                if (member != sender) {
+                    member.sendMessage(message);
+                    recipients++;
+                }
+            }
+        }
+        return recipients;
+    }
+
+    // Same, skipping every member in excluded (a batch of joiners); returns the recipient count
+    int broadcast(EncodedMessage message, Set<ClientHandler> excluded) {
+        int recipients = 0;
+        for (int i = 0; i < SHARDS; i++) {
+            Set<ClientHandler> shard = shards.get(i);
+            if (shard == null) {
+                continue;
+            }
+            for (ClientHandler member : shard) {
+                if (!excluded.contains(member)) {
+                    member.sendMessage(message);
+                    recipients++;
+                }
+            }
+        }
+        return recipients;
+    }
+}
@@ -3,247 +3,558 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * Multithreaded Chat Server
  * Handles multiple client connections using socket programming and threading
- * Features: User registration, broadcast messaging, private messaging, user list
+ * Features: User registration, broadcast messaging, private messaging, user list, rooms,
+ * persistent history, clustering (several nodes sharing users, rooms and private messages)
+ * I/O modes: --io=thread (one thread per connection, default), --io=virtual
+ * (same handler on virtual threads, Java 21+) or --io=nio (selector loops)
  */
 public class ChatServer {
     private static final int PORT = 12345;
     private static Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
     private static Map<String, ClientHandler> clientMap = new ConcurrentHashMap<>();
-    
+    private static ChatOptions options = ChatOptions.parse(new String[0]);
+    private static RoomRegistry rooms = new RoomRegistry();
+    // Every online user, here and on other cluster nodes (/users)
+    private static UserRoster roster = new UserRoster(100);
+    private static ChatHistory history;
+    private static OfflineMailbox mailbox;
+    private static ChatCluster cluster;
+    // Idle and heartbeat deadlines of every connection (null when both are off)
+    private static TimerWheel timers;
+    // Queue and workers for username registrations (null = register inline)
+    private static AdmissionController admission;
+    // Users allowed to run admin commands; empty means everyone
+    private static Set<String> admins = Collections.emptySet();
+    // Listening sockets (ServerSocket or ServerSocketChannel), closed first on shutdown
+    private static final List<Closeable> listeners = new CopyOnWriteArrayList<>();
+    private static volatile boolean shuttingDown;
+
     public static void main(String[] args) {
+        options = ChatOptions.parse(args);
+        ChatLog.configure(options);
+        String adminList = options.get("admins", "").trim();
+        if (!adminList.isEmpty()) {
+            admins = new HashSet<>(Arrays.asList(adminList.split("\\s*,\\s*")));
+        }
+        roster = new UserRoster(options.getInt("users-page", 100));
+        RateLimiter.configure(options);
+        int port = options.getInt("port", PORT);
+        String io = options.get("io", "thread");
+
         System.out.println("=== MULTITHREADED CHAT SERVER ===");
-        System.out.println("Server starting on port " + PORT + "...");
-        
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server is running and waiting for connections...");
-            System.out.println("Commands: /users, /private <username> <message>, /quit");
-            System.out.println("==========================================");
-            
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                ClientHandler clientHandler = new ClientHandler(clientSocket);
-                clients.add(clientHandler);
-                new Thread(clientHandler).start();
-                
-                System.out.println("[" + getCurrentTime() + "] New client connected from: " + 
-                                 clientSocket.getInetAddress() + ". Total clients: " + clients.size());
+        System.out.println("Server starting on port " + port + " (io=" + io + ")...");
+
+        try {
+            if (options.getBoolean("history", true)) {
+                history = ChatHistory.open(options);
+            }
+            if (options.getBoolean("mailbox", true)) {
+                mailbox = OfflineMailbox.open(options);
+            }
+            ChatMetrics.startHttp(options);
+            cluster = ChatCluster.start(options);
+            // Relayed messages are bytes only: they cannot go into history or to the cluster
+            if (history == null && cluster == null) {
+                FrameDecoder.enableRelay(options.getInt("relay-min-bytes", 16 * 1024),
+                        options.getInt("relay-max-bytes", 1024 * 1024));
+            }
+            if (options.getLong("shutdown-timeout", 10) > 0) {
+                Runtime.getRuntime().addShutdownHook(new Thread(ChatServer::shutdown, "chat-shutdown"));
+            }
+            ClientHandler.configureHeartbeat(options);
+            if (options.getLong("heartbeat", 30) > 0 || options.getLong("idle-timeout", 120) > 0) {
+                timers = TimerWheel.start("chat-timers", options.getLong("timer-tick-ms", 100) * 1_000_000);
+            }
+            admission = AdmissionController.start(options);
+            int loops = options.getInt("loops", Runtime.getRuntime().availableProcessors());
+            int webSocketPort = options.getInt("ws-port", 0);
+            int tlsPort = options.getInt("tls-port", 0);
+            int secureWebSocketPort = options.getInt("wss-port", 0);
+            // WebSocket and TLS listeners always run on the non-blocking core; in the other
+            // modes its plain TCP listener is just not used
+            NioChatServer nio = "nio".equals(io) || webSocketPort > 0 || tlsPort > 0 || secureWebSocketPort > 0
+                    ? new NioChatServer(port, loops) : null;
+            if (webSocketPort > 0) {
+                nio.startListener(webSocketPort, true, false);
+            }
+            if (tlsPort > 0) {
+                nio.startListener(tlsPort, false, true);
+            }
+            if (secureWebSocketPort > 0) {
+                nio.startListener(secureWebSocketPort, true, true);
+            }
+            if ("nio".equals(io)) {
+                nio.run();
+            } else {
+                if ("virtual".equals(io)) {
+                    runBlocking(port, virtualThreadExecutor());
+                } else {
+                    runBlocking(port, handler -> new Thread(handler).start());
+                }
             }
         } catch (IOException e) {
-            System.err.println("Server error: " + e.getMessage());
+            ChatLog.error("Server error: " + e.getMessage());
+            ChatLog.flush(1000);
         }
     }
-    
-    // Broadcast message to all connected clients
-    public static void broadcastMessage(String message, ClientHandler sender) {
-        for (ClientHandler client : clients) {
-            if (client != sender && client.getUsername() != null) {
-                client.sendMessage(message);
+
+    /**
+     * Classic accept loops: every connection gets its own (platform or virtual) thread
+     * --acceptors threads accept in parallel, each on its own SO_REUSEPORT socket
+     * where the OS has it (the kernel spreads new connections), else on one shared
+     * socket; --accept-backlog sets how many finished handshakes may wait for them.
+     */
+    private static void runBlocking(int port, Executor handlerThreads) throws IOException {
+        int acceptors = Math.max(1, options.getInt("acceptors", 1));
+        List<ServerSocket> servers = new ArrayList<>();
+        for (int i = 0; i < acceptors; i++) {
+            ServerSocket server = new ServerSocket();
+            boolean reusePort = acceptors > 1 && server.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            if (reusePort) {
+                server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
             }
+            server.bind(new InetSocketAddress(port), options.getInt("accept-backlog", 1024));
+            listening(server);
+            servers.add(server);
+            if (!reusePort) {
+                break;
+            }
+        }
+        printBanner();
+
+        for (int i = 1; i < acceptors; i++) {
+            ServerSocket server = servers.get(i % servers.size());
+            Thread acceptor = new Thread(() -> {
+                try {
+                    acceptBlocking(server, handlerThreads);
+                } catch (IOException e) {
+                    ChatLog.error("Accept error: " + e.getMessage());
+                }
+            }, "chat-accept-" + i);
+            acceptor.setDaemon(true);
+            acceptor.start();
         }
+        acceptBlocking(servers.get(0), handlerThreads);
     }
-    
-    // Send private message to specific user
-    public static void sendPrivateMessage(String targetUsername, String message, ClientHandler sender) {
-        ClientHandler targetClient = clientMap.get(targetUsername);
-        if (targetClient != null) {
-            targetClient.sendMessage("[PRIVATE from " + sender.getUsername() + "]: " + message);
-            sender.sendMessage("[PRIVATE to " + targetUsername + "]: " + message);
-        } else {
-            sender.sendMessage("❌ User '" + targetUsername + "' not found or offline.");
+
+    private static void acceptBlocking(ServerSocket serverSocket, Executor handlerThreads) throws IOException {
+        while (true) {
+            Socket clientSocket;
+            try {
+                clientSocket = serverSocket.accept();
+            } catch (IOException e) {
+                if (shuttingDown) {
+                    return;
+                }
+                throw e;
+            }
+            // Set up on the connection's own thread, so the accept loop does nothing but accept
+            handlerThreads.execute(() -> {
+                ClientHandler clientHandler = new ClientHandler(clientSocket);
+                registerClient(clientHandler, clientSocket.getInetAddress());
+                clientHandler.run();
+            });
         }
     }
-    
-    // Remove client when disconnected
-    public static void removeClient(ClientHandler client) {
-        clients.remove(client);
-        if (client.getUsername() != null) {
-            clientMap.remove(client.getUsername());
-            broadcastMessage("🚪 " + client.getUsername() + " left the chat", null);
+
+    // Looked up reflectively so the server still compiles and runs on Java 17
+    private static Executor virtualThreadExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            ChatLog.warn("Virtual threads need Java 21+ (running " + Runtime.version() +
+                         "), falling back to platform threads.");
+            return handler -> new Thread(handler).start();
         }
-        System.out.println("[" + getCurrentTime() + "] Client disconnected. Total clients: " + clients.size());
     }
-    
-    // Add client to username mapping
-    public static void addClientMapping(String username, ClientHandler client) {
-        clientMap.put(username, client);
+
+    // Startup options, for components that are configurable
+    static ChatOptions options() {
+        return options;
     }
-    
-    // Get list of online users
-    public static String getOnlineUsers() {
-        if (clientMap.isEmpty()) {
-            return "📭 No users online.";
-        }
-        return "👥 Online users (" + clientMap.size() + "): " + String.join(", ", clientMap.keySet());
+
+    // Cluster membership, or null when running standalone
+    static ChatCluster cluster() {
+        return cluster;
     }
-    
-    // Check if username is already taken
-    public static boolean isUsernameTaken(String username) {
-        return clientMap.containsKey(username);
+
+    static TimerWheel timers() {
+        return timers;
     }
-    
-    // Get current timestamp
-    private static String getCurrentTime() {
-        return LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss"));
+
+    // Registration queue, or null when registrations run inline
+    static AdmissionController admission() {
+        return admission;
     }
-}
 
-// ========== ClientHandler.java ==========
-/**
- * Handles individual client connections
- * Manages user authentication, message processing, and client communication
- */
-class ClientHandler implements Runnable {
-    private Socket socket;
-    private BufferedReader input;
-    private PrintWriter output;
-    private String username;
-    
-    public ClientHandler(Socket socket) {
-        this.socket = socket;
+    // Remember an accept socket so shutdown can stop new connections
+    static void listening(Closeable socket) {
+        listeners.add(socket);
+    }
+
+    static boolean isShuttingDown() {
+        return shuttingDown;
+    }
+
+    /**
+     * Graceful shutdown (shutdown hook: SIGTERM, Ctrl-C)
+     * Stops accepting, tells every client and closes it the usual way, which
+     * writes whatever is still queued for it. Waits up to --shutdown-timeout
+     * seconds for those writes, then closes history and mailbox so their
+     * latest entries are on disk, and logs how much was drained and dropped.
+     */
+    static void shutdown() {
+        shuttingDown = true;
+        long deadline = System.nanoTime() + options.getLong("shutdown-timeout", 10) * 1_000_000_000L;
+        for (Closeable listener : listeners) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                ChatLog.error("Error closing listener: " + e.getMessage());
+            }
+        }
+
+        long writtenBefore = OutboundQueue.getMessagesWritten();
+        long droppedBefore = OutboundQueue.getTotalDropped();
+        int connections = clients.size();
+        EncodedMessage notice = EncodedMessage.of("🛑 Server is shutting down. Please reconnect in a moment.");
         try {
-            input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            output = new PrintWriter(socket.getOutputStream(), true);
-        } catch (IOException e) {
-            System.err.println("Error setting up client handler: " + e.getMessage());
+            for (ClientHandler client : clients) {
+                client.sendMessage(notice);
+                client.disconnected(ChatMetrics.DisconnectReason.SHUTDOWN);
+            }
+        } finally {
+            notice.release();
         }
-    }
-    
-    @Override
-    public void run() {
+        while (OutboundQueue.getOpenQueues() > 0 && System.nanoTime() - deadline < 0) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        long drained = OutboundQueue.getMessagesWritten() - writtenBefore;
+        long dropped = OutboundQueue.getTotalDropped() - droppedBefore + OutboundQueue.getTotalDepth();
+        ChatLog.info("Shutdown: closed " + connections + " connections, drained " + drained + " messages, dropped " +
+                dropped + (OutboundQueue.getOpenQueues() > 0
+                        ? " (" + OutboundQueue.getOpenQueues() + " connections still writing at the deadline)" : ""));
         try {
-            // Welcome message and username setup
-            sendMessage("🎉 Welcome to the Multithreaded Chat Server!");
-            sendMessage("📝 Please enter your username:");
-            
-            // Get username from client
-            while (username == null) {
-                String inputUsername = input.readLine();
-                if (inputUsername == null || inputUsername.trim().isEmpty()) {
-                    sendMessage("❌ Username cannot be empty. Please enter a valid username:");
-                    continue;
-                }
-                
-                inputUsername = inputUsername.trim();
-                if (ChatServer.isUsernameTaken(inputUsername)) {
-                    sendMessage("❌ Username '" + inputUsername + "' is already taken. Please choose another:");
-                    continue;
-                }
-                
-                username = inputUsername;
-                ChatServer.addClientMapping(username, this);
-                
-                // Notify all users about new user
-                sendMessage("✅ Welcome, " + username + "! You have joined the chat.");
-                sendMessage("💡 Commands: /users (list users), /private <username> <message>, /quit");
-                sendMessage("==========================================");
-                
-                ChatServer.broadcastMessage("👋 " + username + " joined the chat!", this);
-                
-                System.out.println("[" + getCurrentTime() + "] User '" + username + "' joined the chat");
+            if (history != null) {
+                history.close();
             }
-            
-            // Handle messages from client
-            String message;
-            while ((message = input.readLine()) != null) {
-                processMessage(message);
+            if (mailbox != null) {
+                mailbox.close();
             }
-            
         } catch (IOException e) {
-            System.out.println("[" + getCurrentTime() + "] Client connection error: " + e.getMessage());
+            ChatLog.error("Error closing message store: " + e.getMessage());
+        }
+        ChatLog.flush(1000);
+    }
+
+    static void printBanner() {
+        System.out.println("Server is running and waiting for connections...");
+        System.out.println("Commands: /users, /private <username> <message>, /join <room>, /leave, /rooms, /quit");
+        System.out.println("==========================================");
+    }
+
+    // Track a newly accepted connection (any I/O mode)
+    static void registerClient(ClientHandler client, InetAddress address) {
+        client.setRateLimiter(RateLimiter.forClient(address));
+        clients.add(client);
+        ChatMetrics.accepted();
+        ChatLog.info("New client connected from: " + address + ". Total clients: " + clients.size());
+    }
+
+    // Send message to the members of one room (encoded once)
+    public static void broadcastToRoom(ChatRoom room, String message, ClientHandler sender) {
+        deliverToRoom(room, message, sender);
+        if (cluster != null) {
+            cluster.relayRoom(room.getName(), message, false);
+        }
+    }
+
+    // Same, to the members of a room other than a batch of joiners (AdmissionController)
+    static void broadcastToRoomExcept(ChatRoom room, String message, Set<ClientHandler> excluded) {
+        long start = System.nanoTime();
+        EncodedMessage encoded = EncodedMessage.of(message);
+        try {
+            ChatMetrics.broadcast(room.broadcast(encoded, excluded), start);
         } finally {
-            cleanup();
+            encoded.release();
+        }
+        if (cluster != null) {
+            cluster.relayRoom(room.getName(), message, false);
         }
     }
-    
-    // Process incoming messages and commands
-    private void processMessage(String message) {
-        if (message.trim().isEmpty()) {
+
+    // A user's chat line: recorded in the room's history, then sent to the room
+    public static void postChatMessage(ChatRoom room, String formattedMessage, ClientHandler sender) {
+        if (history != null) {
+            history.append(room.getName(), formattedMessage);
+        }
+        deliverToRoom(room, formattedMessage, sender);
+        if (cluster != null) {
+            cluster.relayRoom(room.getName(), formattedMessage, true);
+        }
+    }
+
+    // A room message relayed by another cluster node: local members only
+    static void deliverRemoteRoomMessage(String roomName, String message, boolean record) {
+        if (record && history != null) {
+            history.append(roomName, message);
+        }
+        ChatRoom room = rooms.get(roomName);
+        if (room != null) {
+            deliverToRoom(room, message, null);
+        }
+    }
+
+    // A large chat line relayed as bytes (see FrameDecoder): this node's members only,
+    // not recorded in history or sent to the cluster, which both carry text
+    static void relayToRoom(ChatRoom room, EncodedMessage message, ClientHandler sender) {
+        long start = System.nanoTime();
+        ChatMetrics.broadcast(room.broadcast(message, sender), start);
+    }
+
+    // Encode once and hand to this node's members of the room
+    private static void deliverToRoom(ChatRoom room, String message, ClientHandler sender) {
+        long start = System.nanoTime();
+        EncodedMessage encoded = EncodedMessage.of(message);
+        try {
+            ChatMetrics.broadcast(room.broadcast(encoded, sender), start);
+        } finally {
+            encoded.release();
+        }
+    }
+
+    // Replay the last messages of the user's room (/history)
+    public static void sendHistory(ClientHandler client, int limit) {
+        if (history == null) {
+            client.sendMessage("📭 History is disabled on this server.");
+        } else if (!replayHistory(client, limit)) {
+            client.sendMessage("📭 No history in #" + client.getRoom().getName() + " yet.");
+        }
+    }
+
+    // Same replay, silent when there is nothing to show; returns whether anything was sent
+    static boolean replayHistory(ClientHandler client, int limit) {
+        if (history == null) {
+            return false;
+        }
+        String roomName = client.getRoom().getName();
+        List<String> messages = history.recent(roomName, limit);
+        if (messages.isEmpty()) {
+            return false;
+        }
+        client.sendMessage("📜 Last " + messages.size() + " messages in #" + roomName + ":");
+        for (String message : messages) {
+            client.sendMessage(message);
+        }
+        client.sendMessage("📜 End of history");
+        return true;
+    }
+
+    // Put a newly registered user in the lobby
+    static ChatRoom enterLobby(ClientHandler client) {
+        return enter(RoomRegistry.LOBBY, client);
+    }
+
+    // Join a room and make it the client's; null if the client was cleaned up meanwhile.
+    // Cleanup (idle reaper, slow-consumer kick) marks the client closed before it reads its
+    // room, so either it sees this room and leaves it, or this sees closed and leaves it here.
+    private static ChatRoom enter(String roomName, ClientHandler client) {
+        ChatRoom room = rooms.join(roomName, client);
+        client.setRoom(room);
+        if (client.isClosed()) {
+            rooms.leave(room, client);
+            return null;
+        }
+        return room;
+    }
+
+    // Move a user into another room, announcing it on both sides
+    public static void joinRoom(ClientHandler client, String roomName) {
+        ChatRoom current = client.getRoom();
+        if (current != null) {
+            if (current.getName().equals(roomName)) {
+                client.sendMessage("ℹ️ You are already in #" + roomName + ".");
+                return;
+            }
+            rooms.leave(current, client);
+            broadcastToRoom(current, "🚪 " + client.getUsername() + " left #" + current.getName(), client);
+        }
+        ChatRoom room = enter(roomName, client);
+        if (room == null) {
             return;
         }
-        
-        // Handle commands
-        if (message.startsWith("/")) {
-            handleCommand(message);
+        broadcastToRoom(room, "👋 " + client.getUsername() + " joined #" + roomName, client);
+        client.sendMessage("✅ You are now in #" + roomName + " (" + room.size() + " users).");
+    }
+
+    // Get list of rooms with member counts
+    public static String getRooms() {
+        return rooms.describe();
+    }
+
+    // Send private message to specific user
+    public static void sendPrivateMessage(String targetUsername, String message, ClientHandler sender) {
+        ChatMetrics.privateMessage();
+        ClientHandler targetClient = clientMap.get(targetUsername);
+        if (targetClient != null) {
+            targetClient.sendMessage("[PRIVATE from " + sender.getUsername() + "]: " + message);
+            sender.sendMessage("[PRIVATE to " + targetUsername + "]: " + message);
+        } else if (cluster != null && cluster.relayPrivate(targetUsername, sender.getUsername(),
+                "[PRIVATE from " + sender.getUsername() + "]: " + message)) {
+            sender.sendMessage("[PRIVATE to " + targetUsername + "]: " + message);
+        } else if (mailbox != null && mailbox.store(sender.getUsername(), targetUsername,
+                "[PRIVATE from " + sender.getUsername() + " at " + getCurrentTime() + "]: " + message)) {
+            sender.sendMessage("📬 User '" + targetUsername + "' is offline. Your message will be delivered when they return.");
         } else {
-            // Broadcast regular message
-            String formattedMessage = "[" + getCurrentTime() + "] " + username + ": " + message;
-            ChatServer.broadcastMessage(formattedMessage, this);
-            System.out.println(formattedMessage);
+            sender.sendMessage("❌ User '" + targetUsername + "' not found or offline.");
         }
     }
-    
-    // Handle chat commands
-    private void handleCommand(String command) {
-        String[] parts = command.split(" ", 3);
-        String cmd = parts[0].toLowerCase();
-        
-        switch (cmd) {
-            case "/users":
-                sendMessage(ChatServer.getOnlineUsers());
-                break;
-                
-            case "/private":
-                if (parts.length < 3) {
-                    sendMessage("❌ Usage: /private <username> <message>");
-                } else {
-                    String targetUser = parts[1];
-                    String privateMessage = parts[2];
-                    ChatServer.sendPrivateMessage(targetUser, privateMessage, this);
-                }
-                break;
-                
-            case "/quit":
-                sendMessage("👋 Goodbye, " + username + "!");
-                cleanup();
-                break;
-                
-            case "/help":
-                sendMessage("📋 Available commands:");
-                sendMessage("  /users - Show online users");
-                sendMessage("  /private <username> <message> - Send private message");
-                sendMessage("  /quit - Leave the chat");
-                sendMessage("  /help - Show this help message");
-                break;
-                
-            default:
-                sendMessage("❌ Unknown command: " + cmd + ". Type /help for available commands.");
-                break;
+
+    // A private message relayed by the node the sender is on
+    static void deliverRemotePrivateMessage(String targetUsername, String senderUsername, String message) {
+        ClientHandler targetClient = clientMap.get(targetUsername);
+        if (targetClient != null) {
+            targetClient.sendMessage(message);
+        } else if (mailbox != null) {
+            // Left while the message was in flight
+            mailbox.store(senderUsername, targetUsername, message);
         }
     }
-    
-    // Send message to this client
-    public void sendMessage(String message) {
-        if (output != null) {
-            output.println(message);
+
+    // Hand a returning user everything queued for them, as one write
+    static void deliverOfflineMessages(ClientHandler client) {
+        if (mailbox == null) {
+            return;
+        }
+        List<String> messages = mailbox.takeAll(client.getUsername());
+        if (messages.isEmpty()) {
+            return;
+        }
+        StringJoiner batch = new StringJoiner("\n");
+        batch.add("📬 " + messages.size() + " private message(s) received while you were offline:");
+        for (String message : messages) {
+            batch.add(message);
         }
+        client.sendMessage(batch.toString());
     }
-    
-    // Get username
-    public String getUsername() {
-        return username;
+
+    // Remove client when disconnected
+    public static void removeClient(ClientHandler client) {
+        clients.remove(client);
+        if (client.getUsername() != null) {
+            clientMap.computeIfPresent(client.getUsername(), (name, current) -> {
+                if (current != client) {
+                    return current;
+                }
+                roster.remove(name);
+                return null;
+            });
+            if (cluster != null) {
+                cluster.release(client.getUsername());
+            }
+            ChatRoom room = client.getRoom();
+            if (room != null) {
+                rooms.leave(room, client);
+                // Everyone is leaving at once on shutdown: no n-squared goodbyes
+                if (!shuttingDown) {
+                    broadcastToRoom(room, "🚪 " + client.getUsername() + " left the chat", null);
+                }
+            }
+        }
+        ChatLog.info("Client disconnected. Total clients: " + clients.size());
     }
-    
-    // Cleanup resources when client disconnects
-    private void cleanup() {
-        try {
-            ChatServer.removeClient(this);
-            if (input != null) input.close();
-            if (output != null) output.close();
-            if (socket != null) socket.close();
-        } catch (IOException e) {
-            System.err.println("Error during cleanup: " + e.getMessage());
+
+    /**
+     * Take a username for a client in one atomic step
+     * Two connections racing for the same name cannot both win: the map insert
+     * (computeIfAbsent) is the only decision point, with no separate "is it
+     * taken?" check before it.
+     * @return false if the name is held locally or by another cluster node
+     */
+    static boolean claimUsername(String username, ClientHandler client) {
+        if (cluster != null && cluster.isClaimed(username)) {
+            return false;
         }
+        boolean[] claimed = new boolean[1];
+        clientMap.computeIfAbsent(username, name -> {
+            // Inside the map's per-key lock, so a racing removal cannot reach the roster first
+            roster.add(name);
+            claimed[0] = true;
+            return client;
+        });
+        if (!claimed[0]) {
+            return false;
+        }
+        if (cluster != null) {
+            cluster.claim(username, client.getRegisteredAt());
+        }
+        return true;
     }
-    
-    // Get current timestamp
-    private String getCurrentTime() {
-        return LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss"));
+
+    // Local user by name, or null
+    static ClientHandler getClient(String username) {
+        return clientMap.get(username);
+    }
+
+    // Users registered on this node
+    static Collection<ClientHandler> getRegisteredClients() {
+        return clientMap.values();
+    }
+
+    // Online users (cluster-wide), one cached page at a time
+    public static String getOnlineUsers(int page) {
+        return roster.page(page);
+    }
+
+    // Online users whose name starts with prefix
+    static String findUsers(String prefix) {
+        return roster.search(prefix);
+    }
+
+    // Shared with ChatCluster, which adds and removes the users of other nodes
+    static UserRoster roster() {
+        return roster;
+    }
+
+    // Number of registered (named) users
+    static int getUserCount() {
+        return clientMap.size();
+    }
+
+    // Number of open connections, registered or not
+    static int getConnectionCount() {
+        return clients.size();
+    }
+
+    static int getRoomCount() {
+        return rooms.count();
+    }
+
+    // Offline messages waiting for delivery (0 without a mailbox)
+    static long getMailboxQueued() {
+        return mailbox == null ? 0 : mailbox.getQueued();
+    }
+
+    // Whether a user may run admin commands (--admins; nobody without it)
+    static boolean isAdmin(String username) {
+        return admins.contains(username);
+    }
+
+    // Get current timestamp (cached, see ChatClock)
+    static String getCurrentTime() {
+        return ChatClock.currentTime();
     }
 }
 
@@ -298,7 +609,11 @@ public class ChatClient {
         try {
             String message;
             while ((message = input.readLine()) != null) {
-                System.out.println(message);
+                if (message.equals("/ping")) {
+                    output.println("/pong");
+                } else {
+                    System.out.println(message);
+                }
             }
         } catch (IOException e) {
             System.out.println("❌ Connection to server lost.");
@@ -346,7 +661,7 @@ public class ChatClient {
 COMPILATION AND EXECUTION INSTRUCTIONS:
 
 1. Split the classes into separate files:
-   - ChatServer.java (contains ChatServer and ClientHandler)
+   - ChatServer.java (contains ChatServer; ClientHandler and the transports have their own files)
    - ChatClient.java (contains ChatClient)
 
 2. Compile all Java files:
@@ -358,6 +673,82 @@ COMPILATION AND EXECUTION INSTRUCTIONS:
 4. Start Multiple Clients (in separate terminals):
    java ChatClient
 
+5. Optional: a three-node cluster on one host (each node needs its own history/mailbox dirs):
+   java ChatServer --port=12345 --cluster-port=13345 --cluster-secret=s3cret --peers=localhost:13345,localhost:13346,localhost:13347 --history-dir=h1 --mailbox-dir=m1
+   java ChatServer --port=12346 --cluster-port=13346 --cluster-secret=s3cret --peers=localhost:13345,localhost:13346,localhost:13347 --history-dir=h2 --mailbox-dir=m2
+   java ChatServer --port=12347 --cluster-port=13347 --cluster-secret=s3cret --peers=localhost:13345,localhost:13346,localhost:13347 --history-dir=h3 --mailbox-dir=m3
+
+6. Optional: TLS with a local self-signed certificate (clients must trust it, e.g. openssl s_client):
+   keytool -genkeypair -alias chat -keyalg EC -groupname secp256r1 -dname CN=localhost -validity 365 -keystore chat-tls.p12 -storetype PKCS12 -storepass changeit
+   java ChatServer --tls-port=12443
+
+SERVER OPTIONS (--key=value, or -Dchat.key=value):
+- --port=12345 : Listening port
+- --io=thread|virtual|nio : Platform thread per connection (default), virtual thread
+  per connection (Java 21+) or non-blocking selector loops
+- --loops=N : Number of selector loops in nio mode (default: CPU count)
+- --acceptors=1 : Accept threads per listening port (each on its own SO_REUSEPORT socket where supported)
+- --accept-backlog=1024 : Connections the OS may hold waiting to be accepted
+- --register-workers=2 : Threads that register usernames, queued by admission control (0 = inline)
+- --register-max-wait-ms=2000 : Refuse a registration (retry later) when it would wait longer than this
+- --queue-limit=1024 : Max queued outbound messages per client
+- --slow-consumer=drop-oldest|disconnect|block : What to do when that queue is full
+  (block never parks a selector loop or the timer thread: those senders kick the client at once)
+- --block-timeout=1000 : Max ms a sender waits under the block policy before the client is kicked
+- --flush-delay-us=0 : Latency budget for coalescing queued messages into one write
+- --flush-bytes=16384 : Write as soon as this many bytes are pending (and max bytes per write)
+- --log-level=debug|info|warn|error : Server log threshold (logging is asynchronous)
+- --log-messages=false : Do not echo every chat message to the server log
+- --log-buffer=8192 : Log ring size; entries are dropped rather than block when it is full
+- --history=false : Do not persist room messages
+- --history-dir=chat-history : Where history segments and the index live
+- --history-segment-mb=64 : Roll to a new segment file at this size
+- --history-fsync-ms=1000 : Max interval between fsyncs of new history
+- --history-replay=10 : Messages replayed to a user right after registering (0 = off)
+- --mailbox=false : Do not keep /private messages for offline users
+- --mailbox-dir=chat-mailbox : Where the offline mailbox log lives
+- --mailbox-per-user=100 : Queued messages kept per offline user (oldest evicted)
+- --mailbox-per-sender=1000 : Offline messages one user may have queued at once
+- --mailbox-ttl-hours=168 : Offline messages not delivered by then are dropped (0 = keep)
+- --mailbox-max-messages=1000000 : Server-wide cap on queued offline messages
+- --mailbox-known-days=30 : Mail is only kept for names that registered here within this many days
+- --mailbox-known-max=100000 : Names remembered for that (least recently seen forgotten first)
+- --mailbox-compact-mb=64 : Compact the mailbox log past this size once mostly delivered
+- --admins=alice,bob : Users allowed to run admin commands such as /stats (default: nobody)
+- --metrics-port=0 : Serve plain-text metrics at http://127.0.0.1:<port>/metrics (0 = off)
+- --metrics-host=127.0.0.1 : Interface the metrics endpoint binds to
+- --cluster-port=0 : Join a cluster, listening for peer nodes on this port (0 = standalone)
+- --cluster-host=127.0.0.1 : Interface the cluster port binds to (set it to reach peers on other hosts)
+- --cluster-secret=... : Shared by every node; peers that cannot prove it are refused (required)
+- --peers=host:port,... : Cluster ports of the other nodes (the same list can go to every node)
+- --node-id=<ip>:<cluster-port> : Unique node name, used to route /private and break name ties
+- --cluster-queue=65536 : Max frames queued per peer link; past it the link is dropped and resynced
+- --compress-level=1 : Deflate level for /compress connections (1 fastest .. 9 smallest)
+- --compress-min-bytes=64 : Shorter lines are framed but not deflated
+- --ws-port=0 : Also accept WebSocket clients (ws://host:<port>/) on this port, in any --io mode (0 = off)
+- --tls-port=0 : Also accept TLS clients (line protocol) on this port, in any --io mode (0 = off)
+- --wss-port=0 : Also accept secure WebSocket clients (wss://host:<port>/) on this port (0 = off)
+- --tls-keystore=chat-tls.p12 : PKCS12 keystore with the server key and certificate
+- --tls-password=changeit : Password of the keystore and its key
+- --tls-session-cache=20000 : TLS 1.2 sessions kept for resumption (TLS 1.3 resumes from tickets)
+- --tls-session-timeout=3600 : Seconds a TLS session can be resumed
+- --relay-min-bytes=16384 : Binary MESSAGE frames with at least this much payload are relayed as bytes
+  (only with --history=false and no cluster, since relayed lines are neither recorded nor forwarded)
+- --relay-max-bytes=1048576 : Largest relayed payload (other frames and lines stay limited to 64 KB)
+- --buffer-pool-mb=64 : Idle memory each BufferPool (direct, heap) keeps for reuse
+- --users-page=100 : Names per /users page and per search result
+- --rate-limit=20 : Messages per second allowed per connection (0 = unlimited)
+- --rate-burst=40 : Messages a connection may send at once before the rate applies
+- --ip-rate-limit=0 : Messages per second shared by all connections from one IP (0 = off)
+- --ip-rate-burst=200 : Burst for the per-IP limit
+- --rate-kick=100 : Dropped messages in a row before a flooding client is disconnected (0 = never)
+- --heartbeat=30 : Seconds of client silence before the server sends a /ping line (0 = off);
+  a client that has never answered /pong gets only the first one
+- --idle-timeout=120 : Seconds of client silence before the connection is dropped (0 = never);
+  applies only to clients that have answered a ping (/pong, or a WebSocket pong)
+- --shutdown-timeout=10 : Seconds to let queued output drain on shutdown (0 = exit without draining)
+- --timer-tick-ms=100 : Resolution of the timer wheel behind heartbeats and idle timeouts
+
 FEATURES IMPLEMENTED:
 ✅ Multithreaded server handling multiple clients simultaneously
 ✅ Real-time messaging between all connected users
@@ -369,16 +760,48 @@ FEATURES IMPLEMENTED:
 ✅ Command system with help functionality
 ✅ Thread-safe operations using ConcurrentHashMap
 ✅ Professional error handling and logging
+✅ Flood protection with per-connection and per-IP token buckets
+✅ Heartbeat pings and idle timeouts that free dead connections promptly
+✅ Graceful shutdown (SIGTERM / Ctrl-C): stop accepting, drain queued output, persist state
+✅ WebSocket endpoint so browsers share rooms with TCP clients, served by the non-blocking core
+✅ Reconnect storm protection: parallel acceptors, a deep accept backlog and bounded registration latency
+✅ TLS and secure WebSocket listeners on the non-blocking core, with session resumption for cheap reconnects
+✅ Large binary messages (up to 1 MB) relayed from pooled direct buffers without decoding them
+  (when history and clustering are off, as relayed lines are neither recorded nor forwarded)
+✅ Connection read/write and TLS buffers borrowed from slab pools only while data is in flight
 
 COMMANDS AVAILABLE:
-- /users : Show list of online users
+- /users [page N | <prefix>] : Show online users (paged), or those whose name starts with <prefix>
 - /private <username> <message> : Send private message
+- /join <room> : Switch to a room (created on first join)
+- /leave : Go back to the lobby
+- /rooms : Show rooms and member counts
+- /history [N] : Show the last N messages of the current room
+- /stats : Show server statistics (users listed in --admins only)
+- /binary : Switch input to binary frames (see FrameDecoder; output stays text lines)
+- /compress : Switch output to deflated frames (see ChatCompression)
 - /quit : Leave the chat
 - /help : Show available commands
 
 ARCHITECTURE:
 - Server: Handles multiple client connections using threading
 - ClientHandler: Manages individual client sessions
+- FrameDecoder: Splits input into text lines or, after /binary, length-prefixed frames
+- BufferPool: Slab-carved direct and heap buffers lent to connections while data is in flight, and to relayed messages
+- ChatCompression: Per-message deflate with a shared dictionary, done once per broadcast
+- RateLimiter: Lock-free token buckets that throttle and kick flooding clients
+- AdmissionController: Bounded queue of username registrations that turns clients away during storms
+- UserRoster: Sorted, versioned user list with cached /users pages and prefix search
+- TimerWheel: Hierarchical timing wheel holding every connection's heartbeat and idle deadline
+- ChatTransport: Output side of a connection (SocketTransport or NioConnection)
+- WebSocketCodec: Upgrade handshake, frames and ping/pong for NioConnections from --ws-port
+- TlsChannel: SSLEngine in front of NioConnections from --tls-port and --wss-port
+- NioChatServer / IoLoop: Non-blocking accept and selector loops for --io=nio
+- RoomRegistry / ChatRoom: Rooms with sharded member sets; messages fan out per room
+- ChatMetrics: Lock-free counters and histograms behind /stats and the metrics endpoint
+- ChatCluster: Peer mesh relaying room and private messages, plus a replicated username directory
+- ChatHistory: Append-only segmented message log with a memory-mapped index
+- OfflineMailbox: Store-and-forward /private messages in a binary log with per-user offsets
 - Client: Provides user interface and server communication
 - Thread-safe collections for managing concurrent access
 */
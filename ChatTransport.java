@@ -0,0 +1,32 @@
+// ========== ChatTransport.java ==========
+/**
+ * Outbound side of a client connection
+ * ClientHandler only talks to this, so it does not care which I/O mode it runs on
+ */
+interface ChatTransport {
+    // Queue a pre-encoded line; the transport takes its own reference
+    void send(EncodedMessage message);
+
+    // Encode and queue one text line
+    default void send(String message) {
+        EncodedMessage encoded = EncodedMessage.of(message);
+        send(encoded);
+        encoded.release();
+    }
+
+    // Queue the /compress acknowledgement; everything queued after it is sent compressed
+    default boolean startCompression(String acknowledgement) {
+        EncodedMessage encoded = EncodedMessage.compressionSwitch(acknowledgement);
+        send(encoded);
+        encoded.release();
+        return true;
+    }
+
+    // Heartbeat for a quiet client; line-protocol clients get it as a text line
+    default void ping(String line) {
+        send(line);
+    }
+
+    // Flush what can be flushed and release the connection
+    void close();
+}
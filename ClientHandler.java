@@ -0,0 +1,714 @@
+// ========== ClientHandler.java ==========
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Handles individual client connections
+ * Manages user authentication, message processing, and client communication
+ * The chat logic is driven by decoded lines and frames (see FrameDecoder), so the
+ * same handler works on a blocking socket thread or on a non-blocking selector loop.
+ */
+class ClientHandler implements Runnable, FrameDecoder.Receiver {
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final String PING = "/ping";
+    private static final String PONG = "/pong";
+    // Input held while a queued registration is pending; more than this disconnects the client
+    private static final int MAX_DEFERRED = 64;
+    private static final int MAX_USERNAME_LENGTH = 32;
+    // Inbound silence before a ping is sent, and before the connection is dropped (0 = never; set by main)
+    private static long heartbeatNanos;
+    private static long idleTimeoutNanos;
+
+    private final ChatTransport transport;
+    private final FrameDecoder decoder = new FrameDecoder(this);
+    private InputStream input;
+    private volatile String username;
+    private volatile long registeredAt;
+    private volatile boolean compressed;
+    private volatile ChatRoom room;
+    private volatile boolean closed;
+    // Flood protection, set when the connection is registered (null = unlimited)
+    private volatile RateLimiter limiter;
+    // Written on every read; checked by the timer wheel
+    private volatile long lastReadNanos = System.nanoTime();
+    private volatile TimerWheel.Timeout idleTimer;
+    // Set once the client has answered a ping: only then is silence taken as a dead peer
+    private volatile boolean answersPings;
+    // Timer wheel thread only
+    private long lastPingNanos;
+    // Set while a registration sits with the AdmissionController; input that arrives meanwhile
+    // waits in deferred and is handled by the registration worker, in order (guarded by this)
+    private volatile boolean registering;
+    private ArrayDeque<Runnable> deferred;
+
+    public ClientHandler(Socket socket) {
+        SocketTransport socketTransport = null;
+        try {
+            input = socket.getInputStream();
+            socketTransport = new SocketTransport(socket, this);
+        } catch (IOException e) {
+            ChatLog.error("Error setting up client handler: " + e.getMessage());
+        }
+        this.transport = socketTransport;
+    }
+
+    // Handler for a transport that pushes lines in (non-blocking modes)
+    ClientHandler(ChatTransport transport) {
+        this.transport = transport;
+    }
+
+    @Override
+    public void run() {
+        try {
+            start();
+
+            // Handle input from client until it disconnects or quits. The thread waits for the
+            // first byte without a buffer and borrows one only to take in what has arrived.
+            int first;
+            while (!closed && input != null && (first = input.read()) >= 0) {
+                ByteBuffer buffer = BufferPool.HEAP.acquire(READ_BUFFER_SIZE);
+                try {
+                    byte[] array = buffer.array();
+                    int offset = buffer.arrayOffset();
+                    array[offset] = (byte) first;
+                    int length = 1;
+                    int available = Math.min(input.available(), READ_BUFFER_SIZE - 1);
+                    if (available > 0) {
+                        length += Math.max(0, input.read(array, offset + 1, available));
+                    }
+                    receive(array, offset, length);
+                } finally {
+                    BufferPool.HEAP.release(buffer);
+                }
+            }
+            cleanup(ChatMetrics.DisconnectReason.CLOSED);
+
+        } catch (IOException e) {
+            if (!closed) {
+                ChatLog.info("Client connection error: " + e.getMessage());
+            }
+            cleanup(ChatMetrics.DisconnectReason.ERROR);
+        }
+    }
+
+    // --heartbeat and --idle-timeout (called from main, before any connection)
+    static void configureHeartbeat(ChatOptions options) {
+        heartbeatNanos = options.getLong("heartbeat", 30) * 1_000_000_000L;
+        idleTimeoutNanos = options.getLong("idle-timeout", 120) * 1_000_000_000L;
+    }
+
+    // New connection: greet it and start watching it for silence
+    void start() {
+        greet();
+        watchIdle();
+    }
+
+    // Welcome message and username prompt (a WebSocket gets it once upgraded)
+    void greet() {
+        sendMessage("🎉 Welcome to the Multithreaded Chat Server!");
+        sendMessage("📝 Please enter your username:");
+    }
+
+    void watchIdle() {
+        TimerWheel timers = ChatServer.timers();
+        if (timers != null) {
+            idleTimer = timers.schedule(this::checkIdle, nextIdleCheck(System.nanoTime()));
+        }
+    }
+
+    // Raw bytes from the transport, in arrival order
+    void receive(byte[] data, int offset, int length) {
+        lastReadNanos = System.nanoTime();
+        decoder.feed(data, offset, length);
+    }
+
+    // Proof of life without chat data (WebSocket ping or pong; browsers always answer pings)
+    void touch() {
+        lastReadNanos = System.nanoTime();
+        answersPings = true;
+    }
+
+    // Timer wheel task: ping a quiet connection, drop one that stayed silent too long.
+    // A client that never answered a ping (nc, telnet, older clients) gets one /ping line
+    // at most and is never dropped for reading quietly.
+    private void checkIdle() {
+        if (closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (idleTimeoutNanos > 0 && answersPings && now - lastReadNanos >= idleTimeoutNanos) {
+            sendMessage("⌛ No activity for " + idleTimeoutNanos / 1_000_000_000L + "s. Disconnecting.");
+            cleanup(ChatMetrics.DisconnectReason.IDLE);
+            return;
+        }
+        if (heartbeatNanos > 0 && (answersPings || lastPingNanos == 0)
+                && now - Math.max(lastReadNanos, lastPingNanos) >= heartbeatNanos) {
+            // Any reply, or a write failing on a dead peer, settles it before the idle timeout
+            lastPingNanos = now;
+            if (transport != null) {
+                transport.ping(PING);
+            }
+            ChatMetrics.heartbeat();
+        }
+        idleTimer = ChatServer.timers().schedule(this::checkIdle, nextIdleCheck(now));
+    }
+
+    // Delay until the next ping or idle deadline, whichever comes first
+    // (rechecked at least that often, as a client may start answering pings later)
+    private long nextIdleCheck(long now) {
+        long next = Long.MAX_VALUE;
+        if (heartbeatNanos > 0) {
+            next = Math.max(lastReadNanos, lastPingNanos) + heartbeatNanos - now;
+        }
+        if (idleTimeoutNanos > 0) {
+            next = Math.min(next, answersPings ? lastReadNanos + idleTimeoutNanos - now : idleTimeoutNanos);
+        }
+        return next;
+    }
+
+    @Override
+    public void onLine(String line) {
+        handleLine(line);
+    }
+
+    // Binary frame: fields are decoded straight from the read buffer, no command parsing
+    @Override
+    public void onFrame(int opcode, byte[] data, int targetOffset, int targetLength,
+                        int payloadOffset, int payloadLength) {
+        if (closed) {
+            return;
+        }
+        if (registering) {
+            // The read buffer is reused, so a deferred frame needs its own copy
+            byte[] copy = Arrays.copyOf(data, Math.max(targetOffset + targetLength, payloadOffset + payloadLength));
+            if (defer(() -> acceptFrame(opcode, copy, targetOffset, targetLength, payloadOffset, payloadLength))) {
+                return;
+            }
+            data = copy;
+        }
+        acceptFrame(opcode, data, targetOffset, targetLength, payloadOffset, payloadLength);
+    }
+
+    private void acceptFrame(int opcode, byte[] data, int targetOffset, int targetLength,
+                             int payloadOffset, int payloadLength) {
+        if (closed || !admit()) {
+            return;
+        }
+        // A text line cannot hold CR/LF; neither may a frame, or its fields would forge extra lines
+        if (FrameDecoder.containsLineBreak(data, targetOffset, targetLength)
+                || FrameDecoder.containsLineBreak(data, payloadOffset, payloadLength)) {
+            sendMessage("❌ Frames may not contain line breaks.");
+            return;
+        }
+        String payload = new String(data, payloadOffset, payloadLength, StandardCharsets.UTF_8);
+        if (opcode == FrameDecoder.COMMAND && PONG.equals(payload)) {
+            answersPings = true;
+            return;
+        }
+        if (username == null) {
+            if (opcode == FrameDecoder.USERNAME) {
+                requestRegistration(payload);
+            } else {
+                sendMessage("📝 Please send a USERNAME frame first.");
+            }
+            return;
+        }
+        switch (opcode) {
+            case FrameDecoder.USERNAME:
+                sendMessage("ℹ️ You are already registered as " + username + ".");
+                break;
+
+            case FrameDecoder.MESSAGE:
+                if (!payload.trim().isEmpty()) {
+                    postMessage(payload);
+                }
+                break;
+
+            case FrameDecoder.PRIVATE:
+                ChatMetrics.command("/private");
+                ChatServer.sendPrivateMessage(new String(data, targetOffset, targetLength, StandardCharsets.UTF_8),
+                        payload, this);
+                break;
+
+            case FrameDecoder.JOIN:
+                ChatMetrics.command("/join");
+                join(new String(data, targetOffset, targetLength, StandardCharsets.UTF_8).toLowerCase());
+                break;
+
+            case FrameDecoder.COMMAND:
+                handleCommand(payload);
+                break;
+
+            default:
+                ChatMetrics.command("unknown");
+                sendMessage("❌ Unknown frame opcode: " + opcode);
+                break;
+        }
+    }
+
+    // Large MESSAGE frame: its payload goes into a pooled buffer after the usual "[time] name: "
+    @Override
+    public ByteBuffer onLargeMessage(int payloadLength) {
+        if (closed) {
+            return null;
+        }
+        if (username == null || registering) {
+            sendMessage("📝 Please register before sending messages.");
+            return null;
+        }
+        if (!admit()) {
+            return null;
+        }
+        byte[] prefix = ("[" + getCurrentTime() + "] " + username + ": ").getBytes(StandardCharsets.UTF_8);
+        return BufferPool.DIRECT.acquire(prefix.length + payloadLength + 1).put(prefix);
+    }
+
+    // The whole payload is in: send the buffer itself to the room, never decoding it
+    @Override
+    public void onLargeMessageEnd(ByteBuffer message) {
+        EncodedMessage encoded = EncodedMessage.relayed(message);
+        int length = encoded.length();
+        try {
+            if (closed) {
+                return;
+            }
+            ChatServer.relayToRoom(room, encoded, this);
+        } finally {
+            encoded.release();
+        }
+        ChatMetrics.chatMessage();
+        ChatMetrics.relayed(length);
+        ChatLog.message("[" + getCurrentTime() + "] " + username + ": (" + length + " bytes relayed)");
+    }
+
+    @Override
+    public void onLargeMessageDropped(ByteBuffer message) {
+        BufferPool.DIRECT.release(message);
+        sendMessage("❌ Frames may not contain line breaks.");
+    }
+
+    // Where a non-blocking read can put the rest of a relayed payload directly, or null
+    ByteBuffer relayTarget() {
+        return decoder.relayTarget();
+    }
+
+    // count bytes were read into relayTarget()
+    void relayed(int count) {
+        lastReadNanos = System.nanoTime();
+        decoder.relayed(count);
+    }
+
+    // Take a rate-limit token for one inbound line or frame; false means drop it
+    private boolean admit() {
+        RateLimiter current = limiter;
+        if (current == null) {
+            return true;
+        }
+        switch (current.check()) {
+            case ALLOW:
+                return true;
+
+            case THROTTLE:
+                ChatMetrics.throttled();
+                if (current.isFirstStrike()) {
+                    sendMessage("⏳ You are sending too fast; messages are being dropped.");
+                }
+                return false;
+
+            default:
+                ChatMetrics.throttled();
+                sendMessage("❌ Flooding. Disconnecting.");
+                cleanup(ChatMetrics.DisconnectReason.FLOODING);
+                return false;
+        }
+    }
+
+    void setRateLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    @Override
+    public void onOversized(String reason) {
+        sendMessage("❌ " + reason + ". Disconnecting.");
+        cleanup(ChatMetrics.DisconnectReason.BAD_INPUT);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Entry point for every text line received from the client
+    void handleLine(String line) {
+        if (closed) {
+            return;
+        }
+        if ("/binary".equalsIgnoreCase(line.trim())) {
+            // The bytes after it are frames: the decoder switches here, on the reading thread,
+            // even when the line itself waits behind a queued registration
+            decoder.enableBinary();
+        }
+        if (registering && defer(() -> acceptLine(line))) {
+            return;
+        }
+        acceptLine(line);
+    }
+
+    private void acceptLine(String line) {
+        if (closed || !admit()) {
+            return;
+        }
+        // Heartbeat reply: the client can be held to the idle timeout from now on
+        if (PONG.equals(line)) {
+            answersPings = true;
+            return;
+        }
+        // /binary may also come first, before the username
+        if (username == null && !"/binary".equalsIgnoreCase(line.trim())) {
+            requestRegistration(line);
+        } else {
+            processMessage(line);
+        }
+    }
+
+    // Register now, or through the AdmissionController's queue when there is one
+    private void requestRegistration(String inputUsername) {
+        AdmissionController admission = ChatServer.admission();
+        if (admission == null || registering) {
+            // Inline, or a retry that was deferred behind the queued registration (on its worker)
+            registerUsername(inputUsername);
+            return;
+        }
+        // Only the reading thread gets here, and nothing it reads is handled until the worker is done
+        registering = true;
+        boolean admitted = admission.submit(() -> {
+            if (!closed) {
+                registerUsername(inputUsername);
+            }
+            finishRegistration();
+        });
+        if (!admitted) {
+            synchronized (this) {
+                registering = false;
+                deferred = null;
+            }
+            sendMessage("⏳ Server is busy. Please reconnect in " + admission.retryAfterSeconds() + "s.");
+            cleanup(ChatMetrics.DisconnectReason.BUSY);
+        }
+    }
+
+    // Registration worker: handle what arrived meanwhile, then go back to handling input directly
+    private void finishRegistration() {
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                next = deferred == null ? null : deferred.poll();
+                if (next == null) {
+                    registering = false;
+                    deferred = null;
+                    return;
+                }
+            }
+            next.run();
+        }
+    }
+
+    // Short enough for every length field it is stored in, and usable as a /private target
+    private static boolean isValidUsername(String name) {
+        if (name.codePointCount(0, name.length()) > MAX_USERNAME_LENGTH) {
+            return false;
+        }
+        return name.codePoints().noneMatch(c -> Character.isWhitespace(c) || Character.isISOControl(c));
+    }
+
+    // Hold input while a registration is queued; false once it is done (handle it directly)
+    private boolean defer(Runnable input) {
+        synchronized (this) {
+            if (!registering) {
+                return false;
+            }
+            if (deferred == null) {
+                deferred = new ArrayDeque<>();
+            }
+            if (deferred.size() < MAX_DEFERRED) {
+                deferred.add(input);
+                return true;
+            }
+        }
+        // Dropping input silently would leave the client with gaps it cannot see
+        ChatMetrics.throttled();
+        sendMessage("❌ Too much input before registration finished. Disconnecting.");
+        cleanup(ChatMetrics.DisconnectReason.FLOODING);
+        return true;
+    }
+
+    // Username setup: first valid, unused line becomes the username
+    private void registerUsername(String inputUsername) {
+        if (inputUsername.trim().isEmpty()) {
+            sendMessage("❌ Username cannot be empty. Please enter a valid username:");
+            return;
+        }
+
+        inputUsername = inputUsername.trim();
+        if (!isValidUsername(inputUsername)) {
+            sendMessage("❌ Usernames are up to " + MAX_USERNAME_LENGTH +
+                    " characters, without spaces or control characters. Please enter a valid username:");
+            return;
+        }
+        registeredAt = System.currentTimeMillis();
+        if (!ChatServer.claimUsername(inputUsername, this)) {
+            sendMessage("❌ Username '" + inputUsername + "' is already taken. Please choose another:");
+            return;
+        }
+
+        username = inputUsername;
+        if (closed) {
+            // Disconnected while registering (idle kick, shutdown): give the name back
+            ChatServer.removeClient(this);
+            return;
+        }
+        ChatMetrics.registered();
+
+        // Notify all users about new user
+        sendMessage("✅ Welcome, " + username + "! You have joined the chat.");
+        sendMessage("💡 Commands: /users (list users), /private <username> <message>, /join <room>, /quit");
+        sendMessage("==========================================");
+
+        room = ChatServer.enterLobby(this);
+        if (room == null) {
+            return;
+        }
+        AdmissionController admission = ChatServer.admission();
+        if (admission != null) {
+            admission.announceJoin(room, this);
+        } else {
+            ChatServer.broadcastToRoom(room, "👋 " + username + " joined the chat!", this);
+        }
+
+        // Catch the late joiner up on the lobby
+        int replay = ChatServer.options().getInt("history-replay", 10);
+        if (replay > 0) {
+            ChatServer.replayHistory(this, replay);
+        }
+        ChatServer.deliverOfflineMessages(this);
+
+        ChatLog.info("User '" + username + "' joined the chat");
+    }
+
+    // Process incoming messages and commands
+    private void processMessage(String message) {
+        if (message.trim().isEmpty()) {
+            return;
+        }
+
+        // Handle commands
+        if (message.startsWith("/")) {
+            handleCommand(message);
+        } else {
+            postMessage(message);
+        }
+    }
+
+    // Broadcast regular message to the current room
+    private void postMessage(String message) {
+        String formattedMessage = "[" + getCurrentTime() + "] " + username + ": " + message;
+        ChatServer.postChatMessage(room, formattedMessage, this);
+        ChatMetrics.chatMessage();
+        ChatLog.message(formattedMessage);
+    }
+
+    // /join target, as typed or from a JOIN frame
+    private void join(String roomName) {
+        if (roomName.startsWith("#")) {
+            roomName = roomName.substring(1);
+        }
+        if (!roomName.matches("[a-z0-9_-]{1,32}")) {
+            sendMessage("❌ Usage: /join <room> (letters, digits, _ or -, up to 32 characters)");
+        } else {
+            ChatServer.joinRoom(this, roomName);
+        }
+    }
+
+    // Handle chat commands
+    private void handleCommand(String command) {
+        String[] parts = command.split(" ", 3);
+        String cmd = parts[0].toLowerCase();
+        ChatMetrics.command(cmd);
+
+        switch (cmd) {
+            case "/users":
+                if (parts.length < 2) {
+                    sendMessage(ChatServer.getOnlineUsers(1));
+                } else if ("page".equalsIgnoreCase(parts[1])) {
+                    int page;
+                    try {
+                        page = parts.length > 2 ? Integer.parseInt(parts[2].trim()) : -1;
+                    } catch (NumberFormatException e) {
+                        page = -1;
+                    }
+                    sendMessage(page < 1 ? "❌ Usage: /users page <N>" : ChatServer.getOnlineUsers(page));
+                } else {
+                    sendMessage(ChatServer.findUsers(parts[1]));
+                }
+                break;
+
+            case "/private":
+                if (parts.length < 3) {
+                    sendMessage("❌ Usage: /private <username> <message>");
+                } else {
+                    String targetUser = parts[1];
+                    String privateMessage = parts[2];
+                    ChatServer.sendPrivateMessage(targetUser, privateMessage, this);
+                }
+                break;
+
+            case "/join":
+                join(parts.length < 2 ? "" : parts[1].toLowerCase());
+                break;
+
+            case "/leave":
+                if (RoomRegistry.LOBBY.equals(room.getName())) {
+                    sendMessage("ℹ️ You are already in the lobby.");
+                } else {
+                    ChatServer.joinRoom(this, RoomRegistry.LOBBY);
+                }
+                break;
+
+            case "/rooms":
+                sendMessage(ChatServer.getRooms());
+                break;
+
+            case "/history":
+                int limit = 10;
+                if (parts.length > 1) {
+                    try {
+                        limit = Integer.parseInt(parts[1]);
+                    } catch (NumberFormatException e) {
+                        limit = -1;
+                    }
+                }
+                if (limit < 1 || limit > 100) {
+                    sendMessage("❌ Usage: /history [N] (1-100, default 10)");
+                } else {
+                    ChatServer.sendHistory(this, limit);
+                }
+                break;
+
+            case "/stats":
+                if (ChatServer.isAdmin(username)) {
+                    sendMessage(ChatMetrics.summary());
+                } else {
+                    sendMessage("❌ /stats is restricted to server admins.");
+                }
+                break;
+
+            case "/binary":
+                // Last text line; everything after it is frames (see FrameDecoder)
+                // (the decoder already switched, see handleLine)
+                sendMessage("✅ Binary protocol enabled: [int length][byte opcode][short targetLength][target][payload]");
+                break;
+
+            case "/compress":
+                if (compressed) {
+                    sendMessage("ℹ️ Compression is already on.");
+                } else if (transport != null && !closed) {
+                    // Last plain line; see ChatCompression for the frames that follow
+                    compressed = transport.startCompression("✅ Compression enabled: [int header][deflate with shared dictionary]");
+                    if (!compressed) {
+                        sendMessage("❌ /compress is not available on this connection.");
+                    }
+                }
+                break;
+
+            case "/quit":
+                sendMessage("👋 Goodbye, " + username + "!");
+                cleanup(ChatMetrics.DisconnectReason.QUIT);
+                break;
+
+            case "/help":
+                sendMessage("📋 Available commands:");
+                sendMessage("  /users [page N | <prefix>] - Show online users, a page at a time, or search by prefix");
+                sendMessage("  /private <username> <message> - Send private message");
+                sendMessage("  /join <room> - Switch to a room (created if needed)");
+                sendMessage("  /leave - Go back to the lobby");
+                sendMessage("  /rooms - Show rooms and member counts");
+                sendMessage("  /history [N] - Show the last N messages of this room");
+                sendMessage("  /stats - Show server statistics (admins)");
+                sendMessage("  /binary - Switch your input to length-prefixed binary frames");
+                sendMessage("  /compress - Receive compressed frames instead of text lines");
+                sendMessage("  /quit - Leave the chat");
+                sendMessage("  /help - Show this help message");
+                break;
+
+            default:
+                sendMessage("❌ Unknown command: " + cmd + ". Type /help for available commands.");
+                break;
+        }
+    }
+
+    // Send message to this client
+    public void sendMessage(String message) {
+        if (transport != null && !closed) {
+            transport.send(message);
+        }
+    }
+
+    // Send an already encoded message (shared between broadcast recipients)
+    void sendMessage(EncodedMessage message) {
+        if (transport != null && !closed) {
+            transport.send(message);
+        }
+    }
+
+    // Get username
+    public String getUsername() {
+        return username;
+    }
+
+    // When the username was taken (epoch ms); decides cluster-wide name conflicts
+    long getRegisteredAt() {
+        return registeredAt;
+    }
+
+    // Room this user is currently talking in (null before registration)
+    ChatRoom getRoom() {
+        return room;
+    }
+
+    void setRoom(ChatRoom room) {
+        this.room = room;
+    }
+
+    // Called by the transport when the peer goes away or has to be dropped
+    void disconnected(ChatMetrics.DisconnectReason reason) {
+        cleanup(reason);
+    }
+
+    // Cleanup resources when client disconnects (safe to call more than once)
+    private void cleanup(ChatMetrics.DisconnectReason reason) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        ChatMetrics.disconnected(reason);
+        if (limiter != null) {
+            limiter.release();
+        }
+        if (idleTimer != null) {
+            idleTimer.cancel();
+        }
+        ChatServer.removeClient(this);
+        // Closing the transport closes the socket (and so the input) once queued output is written
+        if (transport != null) transport.close();
+    }
+
+    // Get current timestamp (cached, see ChatClock)
+    private String getCurrentTime() {
+        return ChatClock.currentTime();
+    }
+}
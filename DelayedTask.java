@@ -0,0 +1,18 @@
+// ========== DelayedTask.java ==========
+/**
+ * Loop task waiting for its deadline (System.nanoTime based)
+ */
+class DelayedTask implements Comparable<DelayedTask> {
+    final long deadline;
+    final Runnable task;
+
+    DelayedTask(long deadline, Runnable task) {
+        this.deadline = deadline;
+        this.task = task;
+    }
+
+    @Override
+    public int compareTo(DelayedTask other) {
+        return Long.compare(deadline - other.deadline, 0);
+    }
+}
@@ -0,0 +1,172 @@
+// ========== EncodedMessage.java ==========
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One outbound chat line, encoded to UTF-8 exactly once
+ * A broadcast builds a single EncodedMessage and every recipient's write path
+ * shares it. The bytes are never modified after construction; each holder
+ * takes a reference with retain() and gives it back with release(). The
+ * compressed form (see ChatCompression) and the WebSocket frame (see
+ * WebSocketCodec) are built on first use and shared the same way.
+ * A relayed message (see FrameDecoder) lives in a pooled direct buffer instead,
+ * written to sockets as it is and returned to the BufferPool by the last release().
+ */
+final class EncodedMessage {
+    private static final byte[] NEWLINE = {'\n'};
+    private static final ThreadLocal<byte[]> copyBuffer = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    // Null for a relayed message until a writer needs an array (compression, WebSocket)
+    private volatile byte[] bytes;
+    private final ByteBuffer pooled;
+    private final ByteBuffer readOnly;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    // Last plain line of a connection: the writer frames everything after it
+    private final boolean startsCompression;
+    // Protocol bytes (WebSocket handshake, control frames) written exactly as they are
+    private final boolean raw;
+    private volatile byte[] framed;
+    private volatile byte[] webSocketFrame;
+
+    private EncodedMessage(byte[] bytes, boolean startsCompression, boolean raw) {
+        this.bytes = bytes;
+        this.pooled = null;
+        this.readOnly = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        this.startsCompression = startsCompression;
+        this.raw = raw;
+    }
+
+    private EncodedMessage(ByteBuffer pooled) {
+        this.pooled = pooled;
+        this.readOnly = pooled.asReadOnlyBuffer();
+        this.startsCompression = false;
+        this.raw = false;
+    }
+
+    // Encode a text line (terminator added); the caller owns the first reference
+    static EncodedMessage of(String message) {
+        return new EncodedMessage(encode(message), false, false);
+    }
+
+    // Acknowledgement of /compress; queued as one entry so nothing can slip in between
+    static EncodedMessage compressionSwitch(String message) {
+        return new EncodedMessage(encode(message), true, false);
+    }
+
+    // Line held in a BufferPool buffer, filled up to its position; the terminator is added here
+    static EncodedMessage relayed(ByteBuffer line) {
+        line.limit(line.position() + NEWLINE.length);
+        line.put(NEWLINE).flip();
+        return new EncodedMessage(line);
+    }
+
+    // Bytes that are not a chat line and must not be framed (the array is not copied)
+    static EncodedMessage raw(byte[] bytes) {
+        return new EncodedMessage(bytes, false, true);
+    }
+
+    private static byte[] encode(String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        byte[] line = new byte[text.length + NEWLINE.length];
+        System.arraycopy(text, 0, line, 0, text.length);
+        System.arraycopy(NEWLINE, 0, line, text.length, NEWLINE.length);
+        return line;
+    }
+
+    boolean startsCompression() {
+        return startsCompression;
+    }
+
+    // Encoded size including the line terminator
+    int length() {
+        return readOnly.remaining();
+    }
+
+    // Private read-only view for one recipient's channel writes
+    ByteBuffer buffer() {
+        return readOnly.duplicate();
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        byte[] array = bytes;
+        if (array != null) {
+            out.write(array);
+            return;
+        }
+        ByteBuffer source = buffer();
+        byte[] chunk = copyBuffer.get();
+        while (source.hasRemaining()) {
+            int length = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+    }
+
+    // The line as an array; a relayed one is copied out of its buffer the first time
+    private byte[] bytes() {
+        byte[] array = bytes;
+        if (array == null) {
+            // Copying it twice in a race is harmless: both copies are equal
+            array = new byte[readOnly.remaining()];
+            buffer().get(array);
+            bytes = array;
+        }
+        return array;
+    }
+
+    // Compressed frame of this line, built by the first writer that needs it
+    byte[] framed() {
+        byte[] result = framed;
+        if (result == null) {
+            synchronized (this) {
+                result = framed;
+                if (result == null) {
+                    result = ChatCompression.frame(bytes());
+                    framed = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    // View of the compressed frame for one recipient's channel writes (never written to)
+    ByteBuffer framedBuffer() {
+        return ByteBuffer.wrap(framed());
+    }
+
+    // This line as a WebSocket text frame, built by the first writer that needs it
+    ByteBuffer webSocketBuffer() {
+        if (raw) {
+            return buffer();
+        }
+        byte[] result = webSocketFrame;
+        if (result == null) {
+            // Building it twice in a race is harmless: both copies are equal
+            result = WebSocketCodec.textFrame(bytes());
+            webSocketFrame = result;
+        }
+        return ByteBuffer.wrap(result);
+    }
+
+    EncodedMessage retain() {
+        if (refCount.getAndIncrement() <= 0) {
+            refCount.decrementAndGet();
+            throw new IllegalStateException("EncodedMessage already released");
+        }
+        return this;
+    }
+
+    // Returns true when this was the last reference
+    boolean release() {
+        int remaining = refCount.decrementAndGet();
+        if (remaining < 0) {
+            throw new IllegalStateException("EncodedMessage released too many times");
+        }
+        if (remaining == 0 && pooled != null) {
+            BufferPool.DIRECT.release(pooled);
+        }
+        return remaining == 0;
+    }
+}
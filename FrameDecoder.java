@@ -0,0 +1,317 @@
+// ========== FrameDecoder.java ==========
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Inbound framing for one connection, shared by every I/O mode
+ * Starts in text mode (UTF-8 lines ending in '\n'). After the client sends
+ * /binary the rest of the stream is length-prefixed frames, which are handed
+ * over as offsets into the read buffer: no line String, no split(), no
+ * lower-casing of a command word. Only the fields a command needs are decoded.
+ * Server-to-client traffic stays newline-delimited UTF-8 in both modes, so a
+ * broadcast is still encoded once for every recipient.
+ *
+ * Frame: [int length][byte opcode][short targetLength][target UTF-8][payload UTF-8]
+ * where length counts everything after itself. Opcodes:
+ * - 1 USERNAME : payload = name
+ * - 2 MESSAGE  : payload = chat line for the current room
+ * - 3 PRIVATE  : target = user, payload = message
+ * - 4 JOIN     : target = room
+ * - 5 COMMAND  : payload = any text command line (/users, /history 20, ...)
+ *
+ * Bytes of an incomplete line or frame are kept (up to 64 KB) until the rest
+ * arrives; the buffer exists only while something is incomplete.
+ *
+ * Large MESSAGE frames (no target, payload of --relay-min-bytes up to
+ * --relay-max-bytes, which may exceed 64 KB) are relayed instead, once main has
+ * called enableRelay: the receiver supplies a pooled buffer (see BufferPool) and
+ * the payload is streamed into it as it arrives, never decoded, only checked
+ * for line breaks. A non-blocking connection reads the payload from the socket
+ * straight into that buffer (relayTarget / relayed).
+ */
+class FrameDecoder {
+    static final int USERNAME = 1;
+    static final int MESSAGE = 2;
+    static final int PRIVATE = 3;
+    static final int JOIN = 4;
+    static final int COMMAND = 5;
+
+    static final int MAX_BYTES = 64 * 1024;
+    private static final int HEADER_BYTES = 4;
+    private static final int MIN_FRAME_BYTES = 3;
+    // Length, opcode and target length: enough to tell whether a frame is relayed
+    private static final int PREFIX_BYTES = HEADER_BYTES + MIN_FRAME_BYTES;
+    // Payload sizes that are relayed; none until enableRelay (set once, before any connection)
+    private static int relayMinBytes = Integer.MAX_VALUE;
+    private static int relayMaxBytes = 0;
+
+    private final Receiver receiver;
+    private boolean binary;
+    private byte[] partial;
+    private int partialLength;
+    // Payload of a relayed frame still to come, and where it goes (null = discard it)
+    private int relayRemaining;
+    private ByteBuffer relay;
+
+    FrameDecoder(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    // Relay MESSAGE payloads of minBytes up to maxBytes (called from main)
+    static void enableRelay(int minBytes, int maxBytes) {
+        relayMinBytes = Math.max(1, minBytes);
+        relayMaxBytes = maxBytes;
+    }
+
+    // Switch to binary frames from the next byte on (reading thread, on "/binary")
+    void enableBinary() {
+        binary = true;
+    }
+
+    // Decode everything complete in data[offset, offset + length)
+    void feed(byte[] data, int offset, int length) {
+        int position = offset;
+        int end = offset + length;
+        while (position < end && !receiver.isClosed()) {
+            position = binary ? feedFrame(data, position, end) : feedLine(data, position, end);
+            if (position < 0) {
+                partial = null;
+                partialLength = 0;
+                return;
+            }
+        }
+    }
+
+    // Returns where the next line starts, end if the rest is incomplete, or -1 on overflow
+    private int feedLine(byte[] data, int position, int end) {
+        for (int i = position; i < end; i++) {
+            if (data[i] == '\n') {
+                if (partialLength == 0) {
+                    receiver.onLine(decodeLine(data, position, i - position));
+                } else {
+                    if (!appendPartial(data, position, i - position)) {
+                        return -1;
+                    }
+                    String line = decodeLine(partial, 0, partialLength);
+                    partial = null;
+                    partialLength = 0;
+                    receiver.onLine(line);
+                }
+                return i + 1;
+            }
+        }
+        return appendPartial(data, position, end - position) ? end : -1;
+    }
+
+    private static String decodeLine(byte[] bytes, int offset, int length) {
+        if (length > 0 && bytes[offset + length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    // Returns where the next frame starts, end if the rest is incomplete, or -1 on a bad frame
+    private int feedFrame(byte[] data, int position, int end) {
+        if (relayRemaining > 0) {
+            return feedRelay(data, position, end);
+        }
+        if (partialLength == 0 && end - position >= PREFIX_BYTES) {
+            // Fast path: the whole frame is in the read buffer
+            int frameLength = readInt(data, position);
+            if (isRelayed(data, position, frameLength)) {
+                startRelay(frameLength - MIN_FRAME_BYTES);
+                return position + PREFIX_BYTES;
+            }
+            if (frameLength < MIN_FRAME_BYTES || frameLength > MAX_BYTES) {
+                receiver.onOversized("Bad frame length " + frameLength);
+                return -1;
+            }
+            if (end - position >= HEADER_BYTES + frameLength) {
+                return dispatch(data, position + HEADER_BYTES, frameLength) ? position + HEADER_BYTES + frameLength : -1;
+            }
+        }
+
+        // Slow path: gather the prefix, then the body, across reads
+        int needed = PREFIX_BYTES;
+        if (partialLength >= PREFIX_BYTES) {
+            needed = HEADER_BYTES + readInt(partial, 0);
+        }
+        int take = Math.min(needed - partialLength, end - position);
+        if (!appendPartial(data, position, take)) {
+            return -1;
+        }
+        position += take;
+        if (partialLength < PREFIX_BYTES) {
+            return position;
+        }
+        int frameLength = readInt(partial, 0);
+        if (partialLength == PREFIX_BYTES) {
+            if (isRelayed(partial, 0, frameLength)) {
+                partial = null;
+                partialLength = 0;
+                startRelay(frameLength - MIN_FRAME_BYTES);
+                return position;
+            }
+            if (frameLength < MIN_FRAME_BYTES || frameLength > MAX_BYTES) {
+                receiver.onOversized("Bad frame length " + frameLength);
+                return -1;
+            }
+        }
+        if (partialLength == HEADER_BYTES + frameLength) {
+            byte[] frame = partial;
+            partial = null;
+            partialLength = 0;
+            return dispatch(frame, HEADER_BYTES, frameLength) ? position : -1;
+        }
+        return position;
+    }
+
+    // A MESSAGE for the current room whose payload size is in the relay range
+    private static boolean isRelayed(byte[] prefix, int offset, int frameLength) {
+        int payloadLength = frameLength - MIN_FRAME_BYTES;
+        return prefix[offset + HEADER_BYTES] == MESSAGE && prefix[offset + 5] == 0 && prefix[offset + 6] == 0
+                && payloadLength >= relayMinBytes && payloadLength <= relayMaxBytes;
+    }
+
+    private void startRelay(int payloadLength) {
+        relayRemaining = payloadLength;
+        relay = receiver.onLargeMessage(payloadLength);
+        if (relay != null) {
+            relay.limit(relay.position() + payloadLength);
+        }
+    }
+
+    // Copy what there is of the relayed payload; returns where the next frame starts
+    private int feedRelay(byte[] data, int position, int end) {
+        int take = Math.min(relayRemaining, end - position);
+        if (relay != null) {
+            if (containsLineBreak(data, position, take)) {
+                dropRelay();
+            } else {
+                relay.put(data, position, take);
+            }
+        }
+        advanceRelay(take);
+        return position + take;
+    }
+
+    // Where the rest of a relayed payload can be read to directly, or null (limit = payload end)
+    ByteBuffer relayTarget() {
+        return relayRemaining > 0 ? relay : null;
+    }
+
+    // count payload bytes were read into relayTarget() by the caller
+    void relayed(int count) {
+        for (int i = relay.position() - count; i < relay.position(); i++) {
+            byte b = relay.get(i);
+            if (b == '\n' || b == '\r') {
+                dropRelay();
+                break;
+            }
+        }
+        advanceRelay(count);
+    }
+
+    // A line break would forge extra lines at the recipients: skip the rest of the payload
+    private void dropRelay() {
+        ByteBuffer dropped = relay;
+        relay = null;
+        receiver.onLargeMessageDropped(dropped);
+    }
+
+    private void advanceRelay(int count) {
+        relayRemaining -= count;
+        if (relayRemaining == 0 && relay != null) {
+            ByteBuffer message = relay;
+            relay = null;
+            receiver.onLargeMessageEnd(message);
+        }
+    }
+
+    private boolean dispatch(byte[] data, int offset, int length) {
+        int opcode = data[offset];
+        int targetLength = ((data[offset + 1] & 0xff) << 8) | (data[offset + 2] & 0xff);
+        if (targetLength > length - MIN_FRAME_BYTES) {
+            receiver.onOversized("Bad frame target length " + targetLength);
+            return false;
+        }
+        int targetOffset = offset + MIN_FRAME_BYTES;
+        int payloadOffset = targetOffset + targetLength;
+        receiver.onFrame(opcode, data, targetOffset, targetLength, payloadOffset, offset + length - payloadOffset);
+        return true;
+    }
+
+    private boolean appendPartial(byte[] data, int from, int length) {
+        if (partialLength + length > MAX_BYTES + HEADER_BYTES) {
+            receiver.onOversized("Line too long (max " + MAX_BYTES + " bytes)");
+            return false;
+        }
+        if (partial == null) {
+            partial = new byte[Math.max(256, length)];
+        } else if (partial.length < partialLength + length) {
+            partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + length));
+        }
+        System.arraycopy(data, from, partial, partialLength, length);
+        partialLength += length;
+        return true;
+    }
+
+    // True when data[offset, offset + length) holds a '\n' or '\r' (never part of a multi-byte UTF-8 char)
+    static boolean containsLineBreak(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] == '\n' || data[i] == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    // Client-side helper: one encoded frame (binary clients, ChatBenchmark)
+    static byte[] encode(int opcode, String target, String payload) {
+        byte[] targetBytes = target.getBytes(StandardCharsets.UTF_8);
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        int length = MIN_FRAME_BYTES + targetBytes.length + payloadBytes.length;
+        byte[] frame = new byte[HEADER_BYTES + length];
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        frame[4] = (byte) opcode;
+        frame[5] = (byte) (targetBytes.length >>> 8);
+        frame[6] = (byte) targetBytes.length;
+        System.arraycopy(targetBytes, 0, frame, 7, targetBytes.length);
+        System.arraycopy(payloadBytes, 0, frame, 7 + targetBytes.length, payloadBytes.length);
+        return frame;
+    }
+
+    // ========== FrameDecoder.Receiver ==========
+    /**
+     * Where decoded lines and frames go (ClientHandler)
+     */
+    interface Receiver {
+        void onLine(String line);
+
+        void onFrame(int opcode, byte[] data, int targetOffset, int targetLength, int payloadOffset, int payloadLength);
+
+        // A relayed MESSAGE of payloadLength bytes begins: the buffer its payload is appended to, or null to skip it
+        ByteBuffer onLargeMessage(int payloadLength);
+
+        // The buffer from onLargeMessage now holds the whole payload (position = end of it)
+        void onLargeMessageEnd(ByteBuffer message);
+
+        // The payload held a line break; the buffer from onLargeMessage is not used any further
+        void onLargeMessageDropped(ByteBuffer message);
+
+        // Input was malformed or over the size limit; the connection should be dropped
+        void onOversized(String reason);
+
+        // Stop decoding (the receiver has quit or been disconnected)
+        boolean isClosed();
+    }
+}
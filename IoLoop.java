@@ -0,0 +1,151 @@
+// ========== IoLoop.java ==========
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread serving many connections
+ * Other threads never touch the selector directly; they hand work over with
+ * execute() or schedule(). Write batches are pooled per loop.
+ */
+class IoLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    // Write coalescing: --flush-delay-us latency budget, --flush-bytes early flush threshold
+    final long flushDelayNanos;
+    final int flushBytes;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Shared by every connection on this loop: reads are processed immediately
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // Loop thread only
+    private final PriorityQueue<DelayedTask> timers = new PriorityQueue<>();
+    private final ArrayDeque<WriteBatch> spareBatches = new ArrayDeque<>();
+    private volatile Thread thread;
+
+    IoLoop() throws IOException {
+        this.selector = Selector.open();
+        ChatOptions options = ChatServer.options();
+        this.flushDelayNanos = options.getLong("flush-delay-us", 0) * 1000;
+        this.flushBytes = options.getInt("flush-bytes", 16 * 1024);
+    }
+
+    // Adopt a freshly accepted channel (greeted once its TLS handshake or WebSocket upgrade is done)
+    void register(SocketChannel channel, boolean webSocket, boolean tls) {
+        execute(() -> {
+            try {
+                NioConnection connection = new NioConnection(this, channel, webSocket, tls);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                ClientHandler handler = new ClientHandler(connection);
+                connection.attach(handler, key);
+                ChatServer.registerClient(handler, channel.socket().getInetAddress());
+                if (webSocket || tls) {
+                    handler.watchIdle();
+                } else {
+                    handler.start();
+                }
+            } catch (IOException e) {
+                ChatLog.error("Error registering client channel: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // already failing
+                }
+            }
+        });
+    }
+
+    // Run a task on this loop's thread
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    // Run a task on this loop's thread after a delay
+    void schedule(Runnable task, long delayNanos) {
+        DelayedTask timer = new DelayedTask(System.nanoTime() + delayNanos, task);
+        execute(() -> timers.add(timer));
+    }
+
+    // Borrow a batch for a connection with data in flight (loop thread only)
+    WriteBatch borrowBatch() {
+        WriteBatch batch = spareBatches.poll();
+        return batch != null ? batch : new WriteBatch();
+    }
+
+    void returnBatch(WriteBatch batch) {
+        batch.clear();
+        spareBatches.push(batch);
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        OutboundQueue.neverBlockOnThisThread();
+        while (true) {
+            try {
+                DelayedTask nextTimer = timers.peek();
+                if (nextTimer == null) {
+                    selector.select();
+                } else {
+                    long waitNanos = nextTimer.deadline - System.nanoTime();
+                    if (waitNanos <= 0) {
+                        selector.selectNow();
+                    } else {
+                        selector.select(Math.max(1, waitNanos / 1_000_000));
+                    }
+                }
+                runTasks();
+                runTimers();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (RuntimeException | LinkageError e) {
+                        // A bug behind one connection must not take the loop and its other connections down
+                        ChatLog.error("Dropping connection after unexpected error: " + e);
+                        connection.abort();
+                    }
+                }
+
+                // Flushes queued while handling reads go out before the next select
+                runTasks();
+            } catch (IOException e) {
+                ChatLog.error("I/O loop error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+            tasks.add(timers.poll().task);
+        }
+        runTasks();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                ChatLog.error("I/O loop task failed: " + e);
+            }
+        }
+    }
+}
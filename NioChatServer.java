@@ -0,0 +1,131 @@
+// ========== NioChatServer.java ==========
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking Chat Server core
+ * Acceptor threads (--acceptors, one by default) hand sockets to a small fixed
+ * pool of selector loops. With several acceptors each listens on its own
+ * SO_REUSEPORT socket where the OS supports it, so the kernel spreads a
+ * reconnect storm across them; --accept-backlog bounds the connections that
+ * may wait to be accepted.
+ * A connection costs a channel, a selection key and a ClientHandler - no thread
+ * and no stream buffers - so idle connections keep heap usage flat.
+ * Extra acceptors take WebSocket (--ws-port), TLS (--tls-port) and secure
+ * WebSocket (--wss-port) clients onto the same loops.
+ */
+public class NioChatServer {
+    private final int port;
+    private final int backlog;
+    private final int acceptors;
+    private final IoLoop[] loops;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    public NioChatServer(int port, int loopCount) throws IOException {
+        this.port = port;
+        this.backlog = ChatServer.options().getInt("accept-backlog", 1024);
+        this.acceptors = Math.max(1, ChatServer.options().getInt("acceptors", 1));
+        this.loops = new IoLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop();
+        }
+    }
+
+    // Start the I/O loops and run the accept loop on the calling thread
+    public void run() throws IOException {
+        List<ServerSocketChannel> servers = bind(port);
+        startLoops();
+        System.out.println("Non-blocking mode with " + loops.length + " I/O loops");
+        ChatServer.printBanner();
+        startAcceptors(servers, false, false, "chat-accept", 1);
+        accept(servers.get(0), false, false);
+    }
+
+    // Accept WebSocket and/or TLS clients on their own port (any --io mode), served by these loops
+    void startListener(int listenPort, boolean webSocket, boolean tls) throws IOException {
+        String name = tls ? (webSocket ? "Secure WebSocket" : "TLS") : "WebSocket";
+        if (tls) {
+            // Fail at startup, not on the first client, if the keystore is unusable
+            TlsChannel.context();
+        }
+        List<ServerSocketChannel> servers = bind(listenPort);
+        startLoops();
+        startAcceptors(servers, webSocket, tls, tls ? (webSocket ? "chat-wss-accept" : "chat-tls-accept") : "chat-ws-accept", 0);
+        System.out.println(name + " endpoint on port " + listenPort);
+    }
+
+    // One listening channel per acceptor with SO_REUSEPORT, else a single channel they share
+    private List<ServerSocketChannel> bind(int listenPort) throws IOException {
+        List<ServerSocketChannel> servers = new ArrayList<>();
+        for (int i = 0; i < acceptors; i++) {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            boolean reusePort = acceptors > 1 && server.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            if (reusePort) {
+                server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            server.bind(new InetSocketAddress(listenPort), backlog);
+            ChatServer.listening(server);
+            servers.add(server);
+            if (!reusePort) {
+                break;
+            }
+        }
+        return servers;
+    }
+
+    // Acceptor threads from the given index on (index 0 may be the caller's own thread)
+    private void startAcceptors(List<ServerSocketChannel> servers, boolean webSocket, boolean tls, String name, int from) {
+        for (int i = from; i < acceptors; i++) {
+            ServerSocketChannel server = servers.get(i % servers.size());
+            Thread acceptor = new Thread(() -> {
+                try {
+                    accept(server, webSocket, tls);
+                } catch (IOException e) {
+                    ChatLog.error("Accept error on " + name + ": " + e.getMessage());
+                }
+            }, acceptors > 1 ? name + "-" + i : name);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+    }
+
+    private void startLoops() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "chat-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void accept(ServerSocketChannel server, boolean webSocket, boolean tls) throws IOException {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (IOException e) {
+                if (ChatServer.isShuttingDown()) {
+                    return;
+                }
+                throw e;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                ChatLog.error("Error setting up client channel: " + e.getMessage());
+                channel.close();
+                continue;
+            }
+            // All acceptors share the round-robin
+            loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(channel, webSocket, tls);
+        }
+    }
+}
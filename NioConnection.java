@@ -0,0 +1,336 @@
+// ========== NioConnection.java ==========
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLException;
+
+/**
+ * Non-blocking transport for one client
+ * Hands incoming bytes to ClientHandler (whose FrameDecoder splits lines or
+ * frames) and keeps a bounded OutboundQueue that is drained by the owning loop
+ * in gathering writes. With a flush delay, messages arriving within that window
+ * share one write unless --flush-bytes are pending first. The queue storage and
+ * write batch exist only while data is in flight. On a TLS connection both
+ * directions go through its TlsChannel.
+ */
+class NioConnection implements ChatTransport, WebSocketCodec.Peer {
+    private final IoLoop loop;
+    private final SocketChannel channel;
+    // Set for connections from the --ws-port / --wss-port listeners (loop thread only)
+    final WebSocketCodec webSocket;
+    // Set for connections from the --tls-port / --wss-port listeners (loop thread only)
+    private final TlsChannel tls;
+    // Where write batches go: the socket, or the TLS engine in front of it
+    private final GatheringByteChannel output;
+    private ClientHandler handler;
+    private SelectionKey key;
+
+    // Filled by any thread, drained by the loop
+    private final OutboundQueue<EncodedMessage> queue = OutboundQueue.forClient(this::discard);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    // Messages being written, and whether output is framed by now (loop thread only)
+    private WriteBatch batch;
+    boolean compressing;
+    private volatile boolean closing;
+    private volatile boolean closed;
+
+    NioConnection(IoLoop loop, SocketChannel channel, boolean webSocket, boolean tls) throws IOException {
+        this.loop = loop;
+        this.channel = channel;
+        this.webSocket = webSocket ? new WebSocketCodec(this) : null;
+        this.tls = tls ? new TlsChannel(channel) : null;
+        this.output = tls ? this.tls : channel;
+    }
+
+    void attach(ClientHandler handler, SelectionKey key) {
+        this.handler = handler;
+        this.key = key;
+    }
+
+    // Read what is available and hand it to the handler
+    void onReadable(ByteBuffer buffer) {
+        if (tls != null) {
+            readTls(buffer);
+            return;
+        }
+        ByteBuffer relay = webSocket == null ? handler.relayTarget() : null;
+        if (relay != null) {
+            // Large relayed message: socket straight into its pooled buffer, no copy
+            readRelay(relay);
+            return;
+        }
+        int read;
+        buffer.clear();
+        try {
+            read = channel.read(buffer);
+        } catch (IOException e) {
+            handler.disconnected(ChatMetrics.DisconnectReason.ERROR);
+            return;
+        }
+        if (read < 0) {
+            handler.disconnected(ChatMetrics.DisconnectReason.CLOSED);
+            return;
+        }
+
+        deliver(buffer.array(), 0, buffer.position());
+    }
+
+    private void readRelay(ByteBuffer relay) {
+        int read;
+        try {
+            read = channel.read(relay);
+        } catch (IOException e) {
+            handler.disconnected(ChatMetrics.DisconnectReason.ERROR);
+            return;
+        }
+        if (read < 0) {
+            handler.disconnected(ChatMetrics.DisconnectReason.CLOSED);
+            return;
+        }
+        handler.relayed(read);
+    }
+
+    // Decrypt what is available; the handshake finishing lets queued output go
+    private void readTls(ByteBuffer buffer) {
+        boolean wasEstablished = tls.isEstablished();
+        boolean open;
+        try {
+            open = tls.read(buffer, this::deliver);
+        } catch (SSLException e) {
+            ChatLog.debug("TLS error: " + e.getMessage());
+            handler.disconnected(ChatMetrics.DisconnectReason.BAD_INPUT);
+            return;
+        } catch (IOException e) {
+            handler.disconnected(ChatMetrics.DisconnectReason.ERROR);
+            return;
+        }
+        if (closed) {
+            return;
+        }
+        if (!open) {
+            handler.disconnected(ChatMetrics.DisconnectReason.CLOSED);
+            return;
+        }
+        if (!wasEstablished && tls.isEstablished()) {
+            ChatMetrics.tlsHandshake(tls.isResumed());
+            if (webSocket == null) {
+                handler.greet();
+            }
+            flush();
+        } else if (tls.hasPendingOutput()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void deliver(byte[] data, int offset, int length) {
+        if (webSocket != null) {
+            webSocket.feed(data, offset, length);
+        } else {
+            handler.receive(data, offset, length);
+        }
+    }
+
+    @Override
+    public void send(EncodedMessage message) {
+        if (closing || closed) {
+            return;
+        }
+        enqueue(message);
+    }
+
+    private void enqueue(EncodedMessage message) {
+        if (!queue.offer(message.retain())) {
+            message.release();
+            ChatLog.warn("Disconnecting slow consumer: " + handler.getUsername());
+            closing = true;
+            queue.clear();
+            loop.execute(this::closeNow);
+            handler.disconnected(ChatMetrics.DisconnectReason.SLOW_CONSUMER);
+            return;
+        }
+        long pending = pendingBytes.addAndGet(message.length());
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (loop.flushDelayNanos > 0 && pending < loop.flushBytes) {
+                loop.schedule(this::flush, loop.flushDelayNanos);
+            } else {
+                loop.execute(this::flush);
+            }
+        } else if (loop.flushDelayNanos > 0 && pending >= loop.flushBytes
+                && pending - message.length() < loop.flushBytes) {
+            // Byte threshold crossed while a delayed flush is waiting: do not wait for it
+            loop.execute(this::flush);
+        }
+    }
+
+    private void discard(EncodedMessage message) {
+        pendingBytes.addAndGet(-message.length());
+        message.release();
+    }
+
+    // Write as much as the socket takes; wait for OP_WRITE if it fills up (loop thread only)
+    void flush() {
+        if (closed) {
+            return;
+        }
+        if (closing && tls != null && !tls.isEstablished()) {
+            // Nothing can be sent before the handshake; drop the connection outright
+            closeNow();
+            return;
+        }
+        try {
+            if (tls != null && !tls.flushHandshake()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            while (true) {
+                if (batch == null) {
+                    batch = loop.borrowBatch();
+                }
+                if (batch.isEmpty()) {
+                    pendingBytes.addAndGet(-batch.fill(queue, loop.flushBytes, this));
+                }
+                if (batch.isEmpty()) {
+                    loop.returnBatch(batch);
+                    batch = null;
+                    flushScheduled.set(false);
+                    // A message may have slipped in after the last poll
+                    if (queue.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                        break;
+                    }
+                    continue;
+                }
+                int completed = batch.writeTo(output);
+                OutboundQueue.recordWrite(completed);
+                if (!batch.isEmpty()) {
+                    if (tls != null && !tls.isEstablished() && !tls.hasPendingOutput()) {
+                        // Held until the handshake is done, which flushes again (no OP_WRITE spin)
+                        key.interestOps(SelectionKey.OP_READ);
+                    } else {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                    return;
+                }
+            }
+            if (tls != null && (closing ? !tls.shutdown() : tls.hasPendingOutput())) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            if (closing) {
+                closeNow();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (IOException | CancelledKeyException e) {
+            boolean failed = !closing;
+            closeNow();
+            if (failed) {
+                handler.disconnected(ChatMetrics.DisconnectReason.ERROR);
+            }
+        }
+    }
+
+    // Deliver whatever is queued, then close the channel
+    @Override
+    public void close() {
+        if (closing || closed) {
+            return;
+        }
+        if (webSocket != null && webSocket.isUpgraded() && webSocket.markClosed()) {
+            // Queued before closing is set, so it goes out last, after everything already queued
+            sendRaw(WebSocketCodec.closeFrame(ChatServer.isShuttingDown()
+                    ? WebSocketCodec.GOING_AWAY : WebSocketCodec.NORMAL_CLOSURE));
+        }
+        closing = true;
+        loop.execute(this::flush);
+    }
+
+    @Override
+    public boolean startCompression(String acknowledgement) {
+        if (webSocket != null) {
+            // Browsers negotiate compression themselves (permessage-deflate), not with our frames
+            return false;
+        }
+        return ChatTransport.super.startCompression(acknowledgement);
+    }
+
+    @Override
+    public void ping(String line) {
+        if (webSocket == null) {
+            send(line);
+        } else if (!closing && !closed) {
+            // Browsers answer a ping frame on their own
+            sendRaw(WebSocketCodec.controlFrame(WebSocketCodec.PING, new byte[0]));
+        }
+    }
+
+    // ---- WebSocketCodec.Peer (loop thread, except sendRaw) ----
+
+    @Override
+    public void onUpgraded() {
+        ChatMetrics.webSocketUpgraded();
+        handler.greet();
+    }
+
+    @Override
+    public void onData(byte[] data, int offset, int length) {
+        handler.receive(data, offset, length);
+    }
+
+    @Override
+    public void sendRaw(byte[] bytes) {
+        if (closed) {
+            return;
+        }
+        EncodedMessage message = EncodedMessage.raw(bytes);
+        enqueue(message);
+        message.release();
+    }
+
+    @Override
+    public void touch() {
+        handler.touch();
+    }
+
+    @Override
+    public void onClose(boolean clean) {
+        handler.disconnected(clean ? ChatMetrics.DisconnectReason.CLOSED : ChatMetrics.DisconnectReason.BAD_INPUT);
+    }
+
+    // Give up on the connection after an unexpected error (loop thread only)
+    void abort() {
+        try {
+            handler.disconnected(ChatMetrics.DisconnectReason.ERROR);
+        } catch (RuntimeException | LinkageError e) {
+            ChatLog.error("Cleanup failed: " + e);
+        } finally {
+            closeNow();
+        }
+    }
+
+    // Release the channel right away (loop thread only)
+    private void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (batch != null) {
+            loop.returnBatch(batch);
+            batch = null;
+        }
+        if (tls != null) {
+            tls.releaseBuffers();
+        }
+        queue.clear();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ChatLog.error("Error during cleanup: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,484 @@
+// ========== OfflineMailbox.java ==========
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Store-and-forward mailboxes for /private messages to offline users
+ * Message bodies live only in an append-only binary log (mail.log); memory holds
+ * one packed long (offset + length), a timestamp and the sender per queued
+ * message, per recipient. Each mailbox keeps at most --mailbox-per-user messages
+ * (oldest evicted), each sender may have at most --mailbox-per-sender queued,
+ * mail expires after --mailbox-ttl-hours and the server keeps at most
+ * --mailbox-max-messages in total, so memory stays bounded.
+ *
+ * Mail is only kept for names that registered on this server recently, so
+ * made-up targets cannot fill it. Registering writes a tombstone, which empties
+ * the user's mailbox and records when the name was last seen; a name unseen for
+ * --mailbox-known-days, or pushed out by --mailbox-known-max newer ones, is
+ * forgotten. When dead records dominate the log it is compacted. The index is
+ * rebuilt by one scan at startup.
+ *
+ * Record: [byte type][u16 recipientLength][recipient UTF-8][int textLength][text UTF-8]
+ *         [long timeMillis][u16 senderLength][sender UTF-8]
+ * (MESSAGE: time stored; DELIVERED: empty text and sender, time the user registered)
+ */
+class OfflineMailbox implements Closeable {
+    private static final byte MESSAGE = 1;
+    private static final byte DELIVERED = 2;
+    private static final int LENGTH_BITS = 24;
+    private static final int MAX_NAME_BYTES = 0xFFFF;
+    // A known name's tombstone is rewritten at most this often, so logins do not grow the log
+    private static final long SEEN_REFRESH_MILLIS = 3_600_000L;
+
+    private final Path directory;
+    private final int perUserLimit;
+    private final int perSenderLimit;
+    private final long totalLimit;
+    private final long ttlMillis;
+    private final long knownMillis;
+    private final int knownLimit;
+    private final long compactBytes;
+    private final ScheduledExecutorService syncer;
+
+    // Guarded by this
+    private final Map<String, PackedRing> mailboxes = new HashMap<>();
+    // Names that registered here, by when they were last recorded as seen (oldest first);
+    // each has one live tombstone in the log
+    private final LinkedHashMap<String, Long> known = new LinkedHashMap<>();
+    private final Map<String, Integer> perSender = new HashMap<>();
+    private FileChannel log;
+    private long logSize;
+    private long liveBytes;
+    private long knownBytes;
+    private long queued;
+    private boolean dirty;
+
+    private OfflineMailbox(Path directory, int perUserLimit, int perSenderLimit, long totalLimit, long ttlMillis,
+                           long knownMillis, int knownLimit, long compactBytes) throws IOException {
+        this.directory = directory;
+        this.perUserLimit = Math.max(1, perUserLimit);
+        this.perSenderLimit = Math.max(1, perSenderLimit);
+        this.totalLimit = totalLimit;
+        this.ttlMillis = ttlMillis;
+        this.knownMillis = knownMillis;
+        this.knownLimit = Math.max(1, knownLimit);
+        this.compactBytes = compactBytes;
+        Files.createDirectories(directory);
+        log = FileChannel.open(directory.resolve("mail.log"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        rebuildIndex();
+        expire();
+
+        syncer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "chat-mailbox-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(this::sync, 1, 1, TimeUnit.SECONDS);
+        syncer.scheduleWithFixedDelay(this::expire, 1, 1, TimeUnit.MINUTES);
+    }
+
+    // Mailbox configured from --mailbox-dir, --mailbox-per-user, --mailbox-per-sender, --mailbox-max-messages,
+    // --mailbox-ttl-hours, --mailbox-known-days, --mailbox-known-max, --mailbox-compact-mb
+    static OfflineMailbox open(ChatOptions options) throws IOException {
+        return new OfflineMailbox(Paths.get(options.get("mailbox-dir", "chat-mailbox")),
+                options.getInt("mailbox-per-user", 100),
+                options.getInt("mailbox-per-sender", 1000),
+                options.getLong("mailbox-max-messages", 1_000_000),
+                options.getLong("mailbox-ttl-hours", 168) * 3_600_000L,
+                options.getLong("mailbox-known-days", 30) * 86_400_000L,
+                options.getInt("mailbox-known-max", 100_000),
+                options.getLong("mailbox-compact-mb", 64) * 1024 * 1024);
+    }
+
+    /**
+     * Queue a message for an offline user (sent here, or relayed by the cluster node of its sender)
+     * @return false if the recipient is not a known name or a limit is reached
+     */
+    synchronized boolean store(String sender, String recipient, String message) {
+        if (!known.containsKey(recipient) || perSender.getOrDefault(sender, 0) >= perSenderLimit) {
+            return false;
+        }
+        PackedRing mailbox = mailboxes.get(recipient);
+        boolean evicting = mailbox != null && mailbox.size() >= perUserLimit;
+        if (!evicting && queued >= totalLimit) {
+            return false;
+        }
+        long storedAt = System.currentTimeMillis();
+        ByteBuffer record = encode(MESSAGE, recipient, message, storedAt, sender);
+        if (record == null || record.remaining() >= 1 << LENGTH_BITS) {
+            return false;
+        }
+        try {
+            long offset = logSize;
+            int length = append(record);
+            if (mailbox == null) {
+                mailbox = new PackedRing();
+                mailboxes.put(recipient, mailbox);
+            }
+            if (evicting) {
+                removeOldest(mailbox);
+            }
+            mailbox.add(pack(offset, length), storedAt, sender);
+            liveBytes += length;
+            queued++;
+            perSender.merge(sender, 1, Integer::sum);
+            return true;
+        } catch (IOException e) {
+            ChatLog.error("Mailbox write failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Remove and return everything queued for a user, oldest first (called when the user registers,
+    // which also records the name as seen). On a read error the mail stays queued.
+    synchronized List<String> takeAll(String recipient) {
+        PackedRing mailbox = mailboxes.get(recipient);
+        Long seen = known.get(recipient);
+        long now = System.currentTimeMillis();
+        if (mailbox == null && seen != null && now - seen < SEEN_REFRESH_MILLIS) {
+            return Collections.emptyList();
+        }
+        ByteBuffer tombstone = encode(DELIVERED, recipient, "", now, "");
+        if (tombstone == null) {
+            return Collections.emptyList();
+        }
+        List<String> messages = new ArrayList<>(mailbox == null ? 0 : mailbox.size());
+        try {
+            long expiredBefore = ttlMillis > 0 ? now - ttlMillis : Long.MIN_VALUE;
+            for (int i = 0; mailbox != null && i < mailbox.size(); i++) {
+                if (mailbox.storedAt(i) >= expiredBefore) {
+                    long entry = mailbox.get(i);
+                    messages.add(readText(offsetOf(entry), lengthOf(entry)));
+                }
+            }
+            remember(recipient, now, append(tombstone));
+        } catch (IOException e) {
+            ChatLog.error("Mailbox read failed: " + e.getMessage());
+            return Collections.emptyList();
+        }
+        if (mailbox != null) {
+            mailboxes.remove(recipient);
+            while (mailbox.size() > 0) {
+                removeOldest(mailbox);
+            }
+        }
+        if (logSize > compactBytes && liveBytes + knownBytes < logSize / 2) {
+            try {
+                compact();
+            } catch (IOException e) {
+                ChatLog.error("Mailbox compaction failed: " + e.getMessage());
+            }
+        }
+        return messages;
+    }
+
+    synchronized long getQueued() {
+        return queued;
+    }
+
+    // Drop mail older than the TTL and names unseen too long (syncer thread, and once at startup)
+    private synchronized void expire() {
+        long now = System.currentTimeMillis();
+        if (ttlMillis > 0) {
+            Iterator<PackedRing> iterator = mailboxes.values().iterator();
+            while (iterator.hasNext()) {
+                PackedRing mailbox = iterator.next();
+                while (mailbox.size() > 0 && mailbox.storedAt(0) < now - ttlMillis) {
+                    removeOldest(mailbox);
+                }
+                if (mailbox.size() == 0) {
+                    iterator.remove();
+                }
+            }
+        }
+        if (knownMillis > 0) {
+            Iterator<Map.Entry<String, Long>> oldest = known.entrySet().iterator();
+            while (oldest.hasNext()) {
+                Map.Entry<String, Long> entry = oldest.next();
+                if (entry.getValue() >= now - knownMillis) {
+                    break;
+                }
+                knownBytes -= tombstoneLength(entry.getKey());
+                oldest.remove();
+            }
+        }
+    }
+
+    // Record a name as seen at time, its tombstone being length bytes; forgets the
+    // least recently seen names past the cap (caller holds the lock)
+    private void remember(String name, long time, int length) {
+        if (known.remove(name) == null) {
+            knownBytes += length;
+        }
+        known.put(name, time);
+        Iterator<String> oldest = known.keySet().iterator();
+        while (known.size() > knownLimit) {
+            knownBytes -= tombstoneLength(oldest.next());
+            oldest.remove();
+        }
+    }
+
+    // Forget a mailbox's oldest message (caller holds the lock)
+    private void removeOldest(PackedRing mailbox) {
+        perSender.computeIfPresent(mailbox.sender(0), (key, count) -> count > 1 ? count - 1 : null);
+        liveBytes -= lengthOf(mailbox.removeOldest());
+        queued--;
+    }
+
+    // Caller holds the lock; returns the record length
+    private int append(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+        while (record.hasRemaining()) {
+            log.write(record, logSize + record.position());
+        }
+        logSize += length;
+        dirty = true;
+        return length;
+    }
+
+    // One record, or null if a name does not fit its 16-bit length
+    private static ByteBuffer encode(byte type, String recipient, String text, long time, String sender) {
+        byte[] name = recipient.getBytes(StandardCharsets.UTF_8);
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        byte[] from = sender.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_NAME_BYTES || from.length > MAX_NAME_BYTES) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.allocate(1 + 2 + name.length + 4 + body.length + 8 + 2 + from.length);
+        record.put(type).putShort((short) name.length).put(name).putInt(body.length).put(body)
+                .putLong(time).putShort((short) from.length).put(from);
+        return record.flip();
+    }
+
+    private static int tombstoneLength(String name) {
+        return 1 + 2 + name.getBytes(StandardCharsets.UTF_8).length + 4 + 8 + 2;
+    }
+
+    private String readText(long offset, int length) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(length);
+        while (record.hasRemaining()) {
+            if (log.read(record, offset + record.position()) < 0) {
+                throw new EOFException("Mailbox record past end of log");
+            }
+        }
+        record.flip();
+        record.position(3 + (record.getShort(1) & 0xFFFF));
+        byte[] body = new byte[record.getInt()];
+        record.get(body);
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    // Replay the log once: messages fill mailboxes, tombstones empty them and mark names as seen
+    private void rebuildIndex() throws IOException {
+        long position = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(log.position(0)), 64 * 1024));
+        try {
+            while (true) {
+                byte type = in.readByte();
+                if (type != MESSAGE && type != DELIVERED) {
+                    break;
+                }
+                byte[] name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                int textLength = in.readInt();
+                if (textLength < 0 || textLength >= 1 << LENGTH_BITS) {
+                    break;
+                }
+                in.skipNBytes(textLength);
+                long time = in.readLong();
+                byte[] from = new byte[in.readUnsignedShort()];
+                in.readFully(from);
+                int length = 1 + 2 + name.length + 4 + textLength + 8 + 2 + from.length;
+                String recipient = new String(name, StandardCharsets.UTF_8);
+
+                if (type == DELIVERED) {
+                    PackedRing mailbox = mailboxes.remove(recipient);
+                    while (mailbox != null && mailbox.size() > 0) {
+                        removeOldest(mailbox);
+                    }
+                    remember(recipient, time, length);
+                } else {
+                    String sender = new String(from, StandardCharsets.UTF_8);
+                    PackedRing mailbox = mailboxes.computeIfAbsent(recipient, key -> new PackedRing());
+                    if (mailbox.size() >= perUserLimit) {
+                        removeOldest(mailbox);
+                    }
+                    mailbox.add(pack(position, length), time, sender);
+                    liveBytes += length;
+                    queued++;
+                    perSender.merge(sender, 1, Integer::sum);
+                }
+                position += length;
+            }
+        } catch (EOFException e) {
+            // End of log, possibly a torn record at the tail
+        }
+        // A torn or garbled tail (the loop stopped early) is cut off as well
+        log.truncate(position);
+        logSize = position;
+    }
+
+    // Rewrite only known names and undelivered messages into a fresh log (caller holds the lock).
+    // Entries point at the new log only once it has replaced the old one.
+    private void compact() throws IOException {
+        Path compacted = directory.resolve("mail.log.compact");
+        List<long[]> relocated = new ArrayList<>(mailboxes.size());
+        long newSize = 0;
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            // Oldest first, so a replay rebuilds the same order
+            for (Map.Entry<String, Long> name : known.entrySet()) {
+                ByteBuffer record = encode(DELIVERED, name.getKey(), "", name.getValue(), "");
+                while (record.hasRemaining()) {
+                    newSize += out.write(record, newSize);
+                }
+            }
+            for (PackedRing mailbox : mailboxes.values()) {
+                long[] entries = new long[mailbox.size()];
+                for (int i = 0; i < mailbox.size(); i++) {
+                    long entry = mailbox.get(i);
+                    int length = lengthOf(entry);
+                    ByteBuffer record = ByteBuffer.allocate(length);
+                    while (record.hasRemaining()) {
+                        if (log.read(record, offsetOf(entry) + record.position()) < 0) {
+                            throw new EOFException("Mailbox record past end of log");
+                        }
+                    }
+                    record.flip();
+                    while (record.hasRemaining()) {
+                        out.write(record, newSize + record.position());
+                    }
+                    entries[i] = pack(newSize, length);
+                    newSize += length;
+                }
+                relocated.add(entries);
+            }
+            out.force(true);
+        }
+        log.close();
+        try {
+            Files.move(compacted, directory.resolve("mail.log"), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // The old log if the move failed, so the mailbox keeps working on it
+            log = FileChannel.open(directory.resolve("mail.log"), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        Iterator<long[]> moved = relocated.iterator();
+        for (PackedRing mailbox : mailboxes.values()) {
+            long[] entries = moved.next();
+            for (int i = 0; i < entries.length; i++) {
+                mailbox.set(i, entries[i]);
+            }
+        }
+        logSize = newSize;
+        liveBytes = newSize - knownBytes;
+        ChatLog.info("Mailbox log compacted to " + newSize + " bytes");
+    }
+
+    private static long pack(long offset, int length) {
+        return (offset << LENGTH_BITS) | length;
+    }
+
+    private static long offsetOf(long entry) {
+        return entry >>> LENGTH_BITS;
+    }
+
+    private static int lengthOf(long entry) {
+        return (int) (entry & ((1L << LENGTH_BITS) - 1));
+    }
+
+    private void sync() {
+        FileChannel current;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            current = log;
+        }
+        try {
+            current.force(false);
+        } catch (IOException e) {
+            // Log was swapped by compaction, which forces its own output
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        syncer.shutdown();
+        log.force(false);
+        log.close();
+    }
+
+    // ========== OfflineMailbox.PackedRing ==========
+    /**
+     * Growable ring of queued messages: packed long, store time and sender
+     */
+    private static final class PackedRing {
+        private long[] entries = new long[4];
+        private long[] storedAt = new long[4];
+        private String[] senders = new String[4];
+        private int head;
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        long get(int i) {
+            return entries[(head + i) % entries.length];
+        }
+
+        long storedAt(int i) {
+            return storedAt[(head + i) % entries.length];
+        }
+
+        String sender(int i) {
+            return senders[(head + i) % entries.length];
+        }
+
+        void set(int i, long value) {
+            entries[(head + i) % entries.length] = value;
+        }
+
+        void add(long value, long time, String sender) {
+            if (size == entries.length) {
+                long[] grownEntries = new long[entries.length * 2];
+                long[] grownTimes = new long[entries.length * 2];
+                String[] grownSenders = new String[entries.length * 2];
+                for (int i = 0; i < size; i++) {
+                    grownEntries[i] = get(i);
+                    grownTimes[i] = storedAt(i);
+                    grownSenders[i] = sender(i);
+                }
+                entries = grownEntries;
+                storedAt = grownTimes;
+                senders = grownSenders;
+                head = 0;
+            }
+            int slot = (head + size) % entries.length;
+            entries[slot] = value;
+            storedAt[slot] = time;
+            senders[slot] = sender;
+            size++;
+        }
+
+        long removeOldest() {
+            long value = entries[head];
+            senders[head] = null;
+            head = (head + 1) % entries.length;
+            size--;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+// ========== OutboundQueue.java ==========
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Bounded per-client outbound message queue
+ * Senders only enqueue; the connection's writer drains it. When a client reads
+ * slower than others talk, the slow-consumer policy decides what gives:
+ * - drop-oldest : discard the oldest queued message (default)
+ * - disconnect  : kick the client
+ * - block       : make the sender wait for room, up to --block-timeout ms, then kick
+ *                 (a sender that must never wait - a selector loop, the timer wheel -
+ *                 kicks right away instead, so one slow client cannot stall a loop)
+ * The backing deque is only allocated while messages are queued. Messages that
+ * are dropped or discarded are handed to the onDiscard callback.
+ */
+class OutboundQueue<T> {
+    enum SlowConsumerPolicy { DROP_OLDEST, DISCONNECT, BLOCK }
+
+    // Server-wide counters
+    private static final LongAdder totalDepth = new LongAdder();
+    private static final LongAdder totalDropped = new LongAdder();
+    private static final LongAdder slowConsumerDisconnects = new LongAdder();
+    private static final LongAdder writeCalls = new LongAdder();
+    private static final LongAdder messagesWritten = new LongAdder();
+    // Queues whose connection has not finished (everything written, or discarded)
+    private static final LongAdder open = new LongAdder();
+    // Set on threads that serve many connections and so must never wait in offer()
+    private static final ThreadLocal<Boolean> neverBlocks = ThreadLocal.withInitial(() -> false);
+
+    private final int limit;
+    private final SlowConsumerPolicy policy;
+    private final long blockTimeoutMillis;
+    private final Consumer<? super T> onDiscard;
+    private ArrayDeque<T> items;
+    private boolean discarded;
+
+    OutboundQueue(int limit, SlowConsumerPolicy policy, long blockTimeoutMillis, Consumer<? super T> onDiscard) {
+        this.limit = Math.max(1, limit);
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.onDiscard = onDiscard;
+        open.increment();
+    }
+
+    // Queue configured from --queue-limit, --slow-consumer and --block-timeout
+    static <T> OutboundQueue<T> forClient(Consumer<? super T> onDiscard) {
+        ChatOptions options = ChatServer.options();
+        String policy = options.get("slow-consumer", "drop-oldest");
+        SlowConsumerPolicy slowConsumerPolicy;
+        try {
+            slowConsumerPolicy = SlowConsumerPolicy.valueOf(policy.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+        }
+        return new OutboundQueue<>(options.getInt("queue-limit", 1024), slowConsumerPolicy,
+                options.getLong("block-timeout", 1000), onDiscard);
+    }
+
+    // Mark the calling thread as one that must not wait for a slow client (run at thread start)
+    static void neverBlockOnThisThread() {
+        neverBlocks.set(true);
+    }
+
+    /**
+     * Add a message for delivery
+     * @return false if the client is too slow and must be disconnected
+     */
+    synchronized boolean offer(T item) {
+        if (discarded) {
+            return true;
+        }
+        if (items == null) {
+            items = new ArrayDeque<>();
+        }
+        long deadline = System.currentTimeMillis() + blockTimeoutMillis;
+        while (items.size() >= limit) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    onDiscard.accept(items.poll());
+                    totalDropped.increment();
+                    totalDepth.decrement();
+                    break;
+
+                case BLOCK:
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining > 0 && !neverBlocks.get()) {
+                        try {
+                            wait(remaining);
+                            if (discarded) {
+                                return true;
+                            }
+                            if (items == null) {
+                                items = new ArrayDeque<>();
+                            }
+                            continue;
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    slowConsumerDisconnects.increment();
+                    return false;
+
+                default:
+                    slowConsumerDisconnects.increment();
+                    return false;
+            }
+        }
+        items.add(item);
+        totalDepth.increment();
+        return true;
+    }
+
+    // Next message to write, or null when drained
+    synchronized T poll() {
+        if (items == null) {
+            return null;
+        }
+        T item = items.poll();
+        if (item != null) {
+            totalDepth.decrement();
+            notifyAll();
+        }
+        if (items.isEmpty()) {
+            items = null;
+        }
+        return item;
+    }
+
+    synchronized boolean isEmpty() {
+        return items == null;
+    }
+
+    synchronized int size() {
+        return items == null ? 0 : items.size();
+    }
+
+    // Discard everything still queued and ignore later offers (connection is gone)
+    synchronized void clear() {
+        if (items != null) {
+            totalDepth.add(-items.size());
+            items.forEach(onDiscard);
+            items = null;
+        }
+        if (!discarded) {
+            discarded = true;
+            open.decrement();
+        }
+        notifyAll();
+    }
+
+    static long getTotalDepth() {
+        return totalDepth.sum();
+    }
+
+    // Connections still holding (or still writing) output; graceful shutdown waits for 0
+    static long getOpenQueues() {
+        return open.sum();
+    }
+
+    static long getTotalDropped() {
+        return totalDropped.sum();
+    }
+
+    static long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.sum();
+    }
+
+    // One socket write call that completed this many queued messages
+    static void recordWrite(int messages) {
+        writeCalls.increment();
+        messagesWritten.add(messages);
+    }
+
+    static void recordMessagesWritten(int messages) {
+        messagesWritten.add(messages);
+    }
+
+    static long getWriteCalls() {
+        return writeCalls.sum();
+    }
+
+    static long getMessagesWritten() {
+        return messagesWritten.sum();
+    }
+}
@@ -0,0 +1,132 @@
+// ========== RateLimiter.java ==========
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flood protection for one connection
+ * Every line or frame a client sends must take a token from its connection's
+ * bucket and, if enabled, from the bucket shared by all connections from the
+ * same IP. Messages without a token are dropped (the client is told once per
+ * burst); a client that keeps sending into a closed bucket is disconnected.
+ *
+ * Options: --rate-limit=20 --rate-burst=40 (per connection, messages/s, 0 = off),
+ * --ip-rate-limit=0 --ip-rate-burst=200 (per IP; off by default since NAT and load
+ * tests put many users behind one address), --rate-kick=100 (dropped messages in
+ * a row before the client is disconnected, 0 = never)
+ */
+final class RateLimiter {
+    enum Verdict { ALLOW, THROTTLE, KICK }
+
+    // Set by configure (all off until then)
+    private static double connectionRate;
+    private static int connectionBurst;
+    private static double ipRate;
+    private static int ipBurst;
+    private static int kickAfter;
+
+    // Buckets shared per client address, dropped with the last connection
+    private static final Map<InetAddress, AddressBucket> addresses = new ConcurrentHashMap<>();
+
+    private final TokenBucket connection;
+    private final InetAddress address;
+    private final AddressBucket shared;
+    // Dropped messages since the last accepted one. Used by one thread at a
+    // time: the registration worker for deferred input, then the reading
+    // thread; the hand-off is ordered by the client's defer lock.
+    private int strikes;
+
+    private RateLimiter(InetAddress address) {
+        this.connection = connectionRate > 0 ? new TokenBucket(connectionRate, connectionBurst) : null;
+        this.address = address;
+        this.shared = ipRate > 0 && address != null
+                ? addresses.compute(address, (key, entry) -> {
+                    AddressBucket bucket = entry != null ? entry : new AddressBucket();
+                    bucket.connections++;
+                    return bucket;
+                })
+                : null;
+    }
+
+    // Read the limits (called from main, before any connection)
+    static void configure(ChatOptions options) {
+        connectionRate = options.getDouble("rate-limit", 20);
+        connectionBurst = options.getInt("rate-burst", 40);
+        ipRate = options.getDouble("ip-rate-limit", 0);
+        ipBurst = options.getInt("ip-rate-burst", 200);
+        kickAfter = options.getInt("rate-kick", 100);
+    }
+
+    // Limiter for a new connection, or null when no limit is configured
+    static RateLimiter forClient(InetAddress address) {
+        return connectionRate > 0 || ipRate > 0 ? new RateLimiter(address) : null;
+    }
+
+    // Take a token for one inbound message
+    Verdict check() {
+        boolean allowed = (connection == null || connection.tryAcquire())
+                && (shared == null || shared.bucket.tryAcquire());
+        if (allowed) {
+            strikes = 0;
+            return Verdict.ALLOW;
+        }
+        strikes++;
+        return kickAfter > 0 && strikes >= kickAfter ? Verdict.KICK : Verdict.THROTTLE;
+    }
+
+    // True for the first dropped message of a run (when the client should be warned)
+    boolean isFirstStrike() {
+        return strikes == 1;
+    }
+
+    // Connection closed: let go of the per-IP bucket
+    void release() {
+        if (shared != null) {
+            addresses.computeIfPresent(address, (key, entry) -> --entry.connections == 0 ? null : entry);
+        }
+    }
+
+    // ========== RateLimiter.AddressBucket ==========
+    /**
+     * Bucket shared by the connections from one address
+     */
+    private static final class AddressBucket {
+        final TokenBucket bucket = new TokenBucket(ipRate, ipBurst);
+        // Guarded by the map's per-key compute
+        int connections;
+    }
+
+    // ========== RateLimiter.TokenBucket ==========
+    /**
+     * Lock-free token bucket (GCRA form)
+     * The whole state is one long: the time at which the bucket would be full
+     * again. Taking a token pushes it one interval into the future; a token is
+     * refused when that would put it more than a burst ahead of now.
+     */
+    static final class TokenBucket {
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private final AtomicLong fullAt;
+
+        TokenBucket(double perSecond, int burst) {
+            this.intervalNanos = Math.max(1, (long) (1_000_000_000L / perSecond));
+            this.toleranceNanos = intervalNanos * Math.max(1, burst);
+            this.fullAt = new AtomicLong(System.nanoTime());
+        }
+
+        boolean tryAcquire() {
+            long now = System.nanoTime();
+            while (true) {
+                long current = fullAt.get();
+                long next = Math.max(current - now, 0) + now + intervalNanos;
+                if (next - now > toleranceNanos) {
+                    return false;
+                }
+                if (fullAt.compareAndSet(current, next)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+// ========== RoomRegistry.java ==========
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * All rooms by name
+ * The lobby always exists; other rooms are created by the first /join and
+ * dropped when the last member leaves. Membership changes run inside the
+ * map's per-key compute so a room is never removed while someone joins it.
+ */
+class RoomRegistry {
+    static final String LOBBY = "lobby";
+
+    private final Map<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+
+    RoomRegistry() {
+        rooms.put(LOBBY, new ChatRoom(LOBBY));
+    }
+
+    ChatRoom join(String name, ClientHandler member) {
+        return rooms.compute(name, (key, room) -> {
+            ChatRoom target = room != null ? room : new ChatRoom(key);
+            target.add(member);
+            return target;
+        });
+    }
+
+    void leave(ChatRoom room, ClientHandler member) {
+        rooms.computeIfPresent(room.getName(), (key, current) -> {
+            current.remove(member);
+            return current.isEmpty() && !LOBBY.equals(key) ? null : current;
+        });
+    }
+
+    int count() {
+        return rooms.size();
+    }
+
+    // Existing room by name, or null
+    ChatRoom get(String name) {
+        return rooms.get(name);
+    }
+
+    // "name (members)" for every room, lobby first then alphabetical
+    String describe() {
+        List<ChatRoom> sorted = new ArrayList<>(rooms.values());
+        sorted.sort(Comparator.comparing((ChatRoom room) -> !LOBBY.equals(room.getName()))
+                .thenComparing(ChatRoom::getName));
+        StringJoiner joiner = new StringJoiner(", ");
+        for (ChatRoom room : sorted) {
+            joiner.add(room.getName() + " (" + room.size() + ")");
+        }
+        return "🏠 Rooms (" + sorted.size() + "): " + joiner;
+    }
+}
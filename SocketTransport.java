@@ -0,0 +1,198 @@
+// ========== SocketTransport.java ==========
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Blocking transport over a plain Socket (thread-per-connection modes)
+ * Messages go into a bounded OutboundQueue and are written by a pooled writer
+ * task, so a sender never waits on another client's socket (unless the
+ * slow-consumer policy is "block"). The writer coalesces everything queued into
+ * one buffered write per drain (up to --flush-bytes per socket write), optionally
+ * waiting --flush-delay-us first so bursts share a write. The write buffer is
+ * borrowed for the drain only (see BorrowedOutput).
+ */
+class SocketTransport implements ChatTransport {
+    private static final ExecutorService writers = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "chat-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Socket socket;
+    private final BorrowedOutput output;
+    private final ClientHandler handler;
+    private final OutboundQueue<EncodedMessage> queue = OutboundQueue.forClient(EncodedMessage::release);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final long flushDelayNanos;
+    // Output is framed by now (writer task only; runs are ordered by drainScheduled)
+    private boolean compressing;
+    private volatile boolean closing;
+
+    SocketTransport(Socket socket, ClientHandler handler) throws IOException {
+        this.socket = socket;
+        this.handler = handler;
+        ChatOptions options = ChatServer.options();
+        this.flushDelayNanos = options.getLong("flush-delay-us", 0) * 1000;
+        // Counts the socket writes the buffer turns into
+        OutputStream socketOutput = new FilterOutputStream(socket.getOutputStream()) {
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.write(bytes, offset, length);
+                OutboundQueue.recordWrite(0);
+            }
+        };
+        this.output = new BorrowedOutput(socketOutput, options.getInt("flush-bytes", 16 * 1024));
+    }
+
+    @Override
+    public void send(EncodedMessage message) {
+        if (!queue.offer(message.retain())) {
+            message.release();
+            ChatLog.warn("Disconnecting slow consumer: " + handler.getUsername());
+            // Closing the socket also unblocks a writer stuck on it
+            queue.clear();
+            closeSocket();
+            handler.disconnected(ChatMetrics.DisconnectReason.SLOW_CONSUMER);
+            return;
+        }
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            writers.execute(this::drain);
+        }
+    }
+
+    // Writer task: write everything queued, flush once, repeat until idle
+    private void drain() {
+        if (flushDelayNanos > 0 && !closing) {
+            LockSupport.parkNanos(flushDelayNanos);
+        }
+        while (true) {
+            try {
+                EncodedMessage message;
+                int written = 0;
+                while ((message = queue.poll()) != null) {
+                    try {
+                        if (compressing) {
+                            byte[] frame = message.framed();
+                            output.write(frame);
+                            ChatCompression.recordSent(message.length(), frame.length);
+                        } else {
+                            message.writeTo(output);
+                            compressing = message.startsCompression();
+                        }
+                        written++;
+                    } finally {
+                        message.release();
+                    }
+                }
+                output.flush();
+                OutboundQueue.recordMessagesWritten(written);
+            } catch (IOException e) {
+                output.discard();
+                queue.clear();
+                closeSocket();
+                handler.disconnected(ChatMetrics.DisconnectReason.ERROR);
+                return;
+            }
+            if (closing) {
+                queue.clear();
+                closeSocket();
+                return;
+            }
+
+            drainScheduled.set(false);
+            // A message may have slipped in after the last poll
+            if (queue.isEmpty() && !closing || !drainScheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    // Write what is queued, then close the socket
+    @Override
+    public void close() {
+        closing = true;
+        scheduleDrain();
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            ChatLog.error("Error during cleanup: " + e.getMessage());
+        }
+    }
+
+    // ========== SocketTransport.BorrowedOutput ==========
+    /**
+     * Buffered socket output whose buffer comes from BufferPool.HEAP on the first
+     * write of a drain and goes back on flush(), so an idle connection holds none
+     * (writer task only)
+     */
+    private static final class BorrowedOutput extends OutputStream {
+        private final OutputStream out;
+        private final int capacity;
+        private ByteBuffer buffer;
+
+        BorrowedOutput(OutputStream out, int capacity) {
+            this.out = out;
+            this.capacity = capacity;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (buffer != null && buffer.remaining() < length) {
+                writeBuffered();
+            }
+            if (length >= capacity) {
+                out.write(bytes, offset, length);
+                return;
+            }
+            if (buffer == null) {
+                buffer = BufferPool.HEAP.acquire(capacity);
+            }
+            buffer.put(bytes, offset, length);
+        }
+
+        // Write what is buffered and give the buffer back
+        @Override
+        public void flush() throws IOException {
+            if (buffer != null) {
+                try {
+                    writeBuffered();
+                } finally {
+                    discard();
+                }
+            }
+            out.flush();
+        }
+
+        // Give the buffer back without writing it (the socket failed)
+        void discard() {
+            if (buffer != null) {
+                BufferPool.HEAP.release(buffer);
+                buffer = null;
+            }
+        }
+
+        private void writeBuffered() throws IOException {
+            if (buffer.position() > 0) {
+                out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+                buffer.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+// ========== TimerWheel.java ==========
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hierarchical timing wheel for connection deadlines (idle timeout, heartbeat)
+ * Four levels of 64 slots; level 0 advances one slot per tick and each higher
+ * level one slot per full turn of the level below. A timeout sits in the level
+ * that matches how far away it is and drops down a level each time its slot is
+ * reached, so scheduling, cancelling and advancing one tick are all O(1) no
+ * matter how many connections are being watched. Firing is late by at most one
+ * tick (--timer-tick-ms, default 100).
+ *
+ * schedule() and cancel() may be called from any thread; they are queued and
+ * applied by the wheel's own thread, which also runs the tasks, so tasks must
+ * be short and must not block.
+ */
+final class TimerWheel implements Runnable {
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    // Further away than this the timeout waits in the top level and is re-placed each turn
+    private static final long MAX_TICKS = 1L << (SLOT_BITS * LEVELS);
+
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    // Heads of doubly linked slot lists (wheel thread only)
+    private final Timeout[][] slots = new Timeout[LEVELS][SLOTS];
+    // New and cancelled timeouts waiting for the wheel thread
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private long currentTick;
+    private volatile int size;
+
+    TimerWheel(long tickNanos) {
+        this.tickNanos = Math.max(1_000_000, tickNanos);
+    }
+
+    // Start a wheel on its own daemon thread
+    static TimerWheel start(String name, long tickNanos) {
+        TimerWheel wheel = new TimerWheel(tickNanos);
+        Thread thread = new Thread(wheel, name);
+        thread.setDaemon(true);
+        thread.start();
+        return wheel;
+    }
+
+    // Run task on the wheel thread after (at least) delayNanos
+    Timeout schedule(Runnable task, long delayNanos) {
+        long deadline = System.nanoTime() + Math.max(0, delayNanos);
+        Timeout timeout = new Timeout(task, (deadline - startNanos + tickNanos - 1) / tickNanos);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    // Timeouts currently in the wheel
+    int size() {
+        return size;
+    }
+
+    @Override
+    public void run() {
+        // Wheel tasks ping every connection; none of them may wait on one slow client
+        OutboundQueue.neverBlockOnThisThread();
+        while (true) {
+            long nextTick = currentTick + 1;
+            long sleepNanos = startNanos + nextTick * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    Thread.sleep(sleepNanos / 1_000_000, (int) (sleepNanos % 1_000_000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            // Catch up tick by tick after a stall so no slot is skipped
+            long now = (System.nanoTime() - startNanos) / tickNanos;
+            while (currentTick < now) {
+                advance();
+            }
+        }
+    }
+
+    private void advance() {
+        currentTick++;
+        applyPending();
+        // Bring down higher levels whose slot comes due this tick, top level first
+        for (int level = LEVELS - 1; level > 0; level--) {
+            long lowerTurns = currentTick >>> (SLOT_BITS * level);
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                cascade(level, (int) (lowerTurns & SLOT_MASK));
+            }
+        }
+        int slot = (int) (currentTick & SLOT_MASK);
+        Timeout timeout;
+        while ((timeout = slots[0][slot]) != null) {
+            unlink(timeout);
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                ChatLog.error("Timer task failed: " + e);
+            }
+        }
+    }
+
+    private void applyPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                if (timeout.level >= 0) {
+                    unlink(timeout);
+                }
+            } else if (timeout.level < 0) {
+                place(timeout);
+            }
+        }
+    }
+
+    private void cascade(int level, int slot) {
+        Timeout timeout = slots[level][slot];
+        slots[level][slot] = null;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.level = -1;
+            timeout.prev = null;
+            timeout.next = null;
+            size--;
+            place(timeout);
+            timeout = next;
+        }
+    }
+
+    private void place(Timeout timeout) {
+        long delta = timeout.deadlineTick - currentTick;
+        int level;
+        long tick;
+        if (delta < SLOTS) {
+            // Overdue timeouts fire in the current slot, which is processed right after
+            level = 0;
+            tick = Math.max(timeout.deadlineTick, currentTick);
+        } else {
+            level = 1;
+            while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+                level++;
+            }
+            tick = Math.min(timeout.deadlineTick, currentTick + MAX_TICKS - 1);
+        }
+        int slot = (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        timeout.level = level;
+        timeout.slot = slot;
+        timeout.next = slots[level][slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        slots[level][slot] = timeout;
+        size++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[timeout.level][timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.level = -1;
+        size--;
+    }
+
+    // ========== TimerWheel.Timeout ==========
+    /**
+     * One scheduled task; links are owned by the wheel thread
+     */
+    final class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private volatile boolean cancelled;
+        private Timeout prev;
+        private Timeout next;
+        // -1 while not in a slot
+        private int level = -1;
+        private int slot;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        // Drop the timeout if it has not fired yet; its slot is freed on the next tick
+        void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                pending.add(this);
+            }
+        }
+    }
+}
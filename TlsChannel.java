@@ -0,0 +1,287 @@
+// ========== TlsChannel.java ==========
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+/**
+ * TLS for one NioConnection from the --tls-port or --wss-port listener
+ * An SSLEngine driven by the connection's loop thread, so encrypted clients cost
+ * a few buffers rather than a thread (no SSLSocket). Reads decrypt into the loop's
+ * shared read buffer; writes take a WriteBatch's buffers directly (this is the
+ * GatheringByteChannel the batch is written to), so one record carries as many
+ * queued messages as fit in 16 KB. Handshake steps run inline on the loop.
+ *
+ * The two ciphertext buffers come from BufferPool.DIRECT only while they hold
+ * bytes, so an idle TLS connection keeps nothing but its engine.
+ *
+ * Reconnects are cheap: TLS 1.3 clients resume from stateless session tickets,
+ * TLS 1.2 clients from the server session cache, skipping the certificate
+ * signature and key exchange of a full handshake.
+ *
+ * Options: --tls-keystore=chat-tls.p12 --tls-password=changeit (PKCS12 key and
+ * certificate), --tls-session-cache=20000 (sessions kept for TLS 1.2 resumption),
+ * --tls-session-timeout=3600 (seconds a session or ticket can be resumed)
+ */
+final class TlsChannel implements GatheringByteChannel {
+    private static final ByteBuffer[] NOTHING = {ByteBuffer.allocate(0)};
+    private static SSLContext context;
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final long startMillis = System.currentTimeMillis();
+    private final int packetSize;
+    // Ciphertext read but not yet decrypted (write mode; null while there is none)
+    private ByteBuffer netIn;
+    // Ciphertext not yet written (read mode; null while there is none)
+    private ByteBuffer netOut;
+    private boolean established;
+
+    TlsChannel(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        this.engine = context().createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.beginHandshake();
+        this.packetSize = engine.getSession().getPacketBufferSize();
+    }
+
+    // Server context from the configured keystore, built once
+    static synchronized SSLContext context() throws IOException {
+        if (context == null) {
+            ChatOptions options = ChatServer.options();
+            String path = options.get("tls-keystore", "chat-tls.p12");
+            char[] password = options.get("tls-password", "changeit").toCharArray();
+            try (InputStream in = new FileInputStream(path)) {
+                KeyStore keys = KeyStore.getInstance("PKCS12");
+                keys.load(in, password);
+                KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                keyManagers.init(keys, password);
+                SSLContext created = SSLContext.getInstance("TLS");
+                created.init(keyManagers.getKeyManagers(), null, null);
+                SSLSessionContext sessions = created.getServerSessionContext();
+                sessions.setSessionCacheSize(options.getInt("tls-session-cache", 20_000));
+                sessions.setSessionTimeout(options.getInt("tls-session-timeout", 3600));
+                context = created;
+            } catch (FileNotFoundException e) {
+                throw new IOException("TLS keystore " + path + " not found (see --tls-keystore)", e);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot load TLS keystore " + path + ": " + e.getMessage(), e);
+            }
+        }
+        return context;
+    }
+
+    // Handshake done; data written before this waits in the WriteBatch
+    boolean isEstablished() {
+        return established;
+    }
+
+    // True when the session was resumed rather than negotiated from scratch
+    boolean isResumed() {
+        return engine.getSession().getCreationTime() < startMillis;
+    }
+
+    // Encrypted bytes still waiting for the socket
+    boolean hasPendingOutput() {
+        return netOut != null;
+    }
+
+    // Give borrowed buffers back (connection closed; loop thread)
+    void releaseBuffers() {
+        if (netIn != null) {
+            BufferPool.DIRECT.release(netIn);
+            netIn = null;
+        }
+        if (netOut != null) {
+            BufferPool.DIRECT.release(netOut);
+            netOut = null;
+        }
+    }
+
+    // Read what the socket has and pass decrypted bytes to sink; false at end of stream
+    boolean read(ByteBuffer plain, Sink sink) throws IOException {
+        if (netIn == null) {
+            netIn = BufferPool.DIRECT.acquire(packetSize);
+        }
+        int read = channel.read(netIn);
+        netIn.flip();
+        try {
+            while (true) {
+                handshake();
+                if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                    // Socket full mid-handshake: carry on when it drains (see flushHandshake)
+                    break;
+                }
+                plain.clear();
+                SSLEngineResult result = engine.unwrap(netIn, plain);
+                checkEstablished();
+                if (plain.position() > 0) {
+                    sink.accept(plain.array(), 0, plain.position());
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    // close_notify from the client: answer it, then hang up
+                    engine.closeOutbound();
+                    handshake();
+                    return false;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    throw new SSLException("Record larger than the read buffer");
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    int needed = engine.getSession().getPacketBufferSize();
+                    if (netIn.capacity() < needed) {
+                        ByteBuffer larger = BufferPool.DIRECT.acquire(needed).put(netIn).flip();
+                        BufferPool.DIRECT.release(netIn);
+                        netIn = larger;
+                    }
+                    break;
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                        && engine.getHandshakeStatus() != HandshakeStatus.NEED_TASK
+                        && engine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP) {
+                    break;
+                }
+            }
+        } finally {
+            netIn.compact();
+            if (netIn.position() == 0) {
+                BufferPool.DIRECT.release(netIn);
+                netIn = null;
+            }
+        }
+        return read >= 0;
+    }
+
+    // Socket writable again: finish pending handshake output; false while some is left
+    boolean flushHandshake() throws IOException {
+        handshake();
+        return flushOutput();
+    }
+
+    // Send close_notify once everything else is out; false while it is still pending
+    boolean shutdown() throws IOException {
+        if (!engine.isOutboundDone()) {
+            engine.closeOutbound();
+        }
+        return flushHandshake();
+    }
+
+    @Override
+    public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+        handshake();
+        if (!established) {
+            return 0;
+        }
+        long consumed = 0;
+        while (flushOutput() && hasRemaining(sources, offset, length)) {
+            SSLEngineResult result = wrap(sources, offset, length);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS session closed");
+            }
+            consumed += result.bytesConsumed();
+        }
+        return consumed;
+    }
+
+    @Override
+    public long write(ByteBuffer[] sources) throws IOException {
+        return write(sources, 0, sources.length);
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        return (int) write(new ByteBuffer[] {source}, 0, 1);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Run handshake steps that need no input: delegated tasks and records to send
+    private void handshake() throws IOException {
+        while (true) {
+            HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+            } else if (status == HandshakeStatus.NEED_WRAP) {
+                if (!flushOutput()) {
+                    return;
+                }
+                SSLEngineResult result = wrap(NOTHING, 0, 1);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED && result.bytesProduced() == 0) {
+                    break;
+                }
+            } else {
+                break;
+            }
+        }
+        checkEstablished();
+        flushOutput();
+    }
+
+    // Encrypt into the (empty) output buffer
+    private SSLEngineResult wrap(ByteBuffer[] sources, int offset, int length) throws SSLException {
+        netOut = netOut == null ? BufferPool.DIRECT.acquire(packetSize) : netOut.compact();
+        try {
+            return engine.wrap(sources, offset, length, netOut);
+        } finally {
+            netOut.flip();
+            checkEstablished();
+            if (!netOut.hasRemaining()) {
+                BufferPool.DIRECT.release(netOut);
+                netOut = null;
+            }
+        }
+    }
+
+    // Write pending ciphertext; true once none is left
+    private boolean flushOutput() throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+        channel.write(netOut);
+        if (netOut.hasRemaining()) {
+            return false;
+        }
+        BufferPool.DIRECT.release(netOut);
+        netOut = null;
+        return true;
+    }
+
+    private void checkEstablished() {
+        if (!established && engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING
+                && !engine.isOutboundDone()) {
+            established = true;
+        }
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ========== TlsChannel.Sink ==========
+    /**
+     * Where decrypted bytes go (the connection's WebSocketCodec or ClientHandler)
+     */
+    interface Sink {
+        void accept(byte[] data, int offset, int length);
+    }
+}
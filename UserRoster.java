@@ -0,0 +1,142 @@
+// ========== UserRoster.java ==========
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sorted, versioned list of online users (local and on other cluster nodes) behind /users
+ * Joins and leaves update a skip list in O(log n) and bump the version. Pages
+ * are served from a snapshot array that is rebuilt at most once per version,
+ * and only when someone asks; the rendered text of each page is cached in the
+ * snapshot, so repeated /users calls between joins and leaves build nothing.
+ * Prefix search walks the skip list from the prefix and stops after one page.
+ *
+ * Options: --users-page=100 (names per page and per search result)
+ */
+final class UserRoster {
+    private final int pageSize;
+    // Name -> number of holders (briefly 2 while a cluster name conflict is being resolved)
+    private final ConcurrentSkipListMap<String, Integer> names = new ConcurrentSkipListMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot;
+
+    UserRoster(int pageSize) {
+        this.pageSize = Math.max(1, pageSize);
+        this.snapshot = new Snapshot(0, new String[0], this.pageSize);
+    }
+
+    void add(String username) {
+        names.merge(username, 1, Integer::sum);
+        version.incrementAndGet();
+    }
+
+    void remove(String username) {
+        names.computeIfPresent(username, (name, holders) -> holders == 1 ? null : holders - 1);
+        version.incrementAndGet();
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    long getVersion() {
+        return version.get();
+    }
+
+    // One page of the roster (1-based), or a usage hint when out of range
+    String page(int number) {
+        Snapshot current = current();
+        int pages = current.pageCount();
+        if (current.names.length == 0) {
+            return "📭 No users online.";
+        }
+        if (number < 1 || number > pages) {
+            return "❌ There " + (pages == 1 ? "is 1 page" : "are " + pages + " pages") + " of users.";
+        }
+        return current.render(number);
+    }
+
+    // Users whose name starts with prefix, at most one page of them
+    String search(String prefix) {
+        StringJoiner found = new StringJoiner(", ");
+        int count = 0;
+        boolean more = false;
+        for (String name : names.tailMap(prefix).keySet()) {
+            if (!name.startsWith(prefix)) {
+                break;
+            }
+            if (count == pageSize) {
+                more = true;
+                break;
+            }
+            found.add(name);
+            count++;
+        }
+        if (count == 0) {
+            return "📭 No users matching '" + prefix + "'.";
+        }
+        return "🔎 Users matching '" + prefix + "' (" + (more ? "first " + count : count) + "): " + found +
+                (more ? "\n💡 Type a longer prefix to narrow it down." : "");
+    }
+
+    // Snapshot for the current version, rebuilt by the first caller after a change
+    private Snapshot current() {
+        Snapshot current = snapshot;
+        long latest = version.get();
+        if (current.version == latest) {
+            return current;
+        }
+        synchronized (this) {
+            current = snapshot;
+            if (current.version != latest) {
+                // Read the version first: a change during the copy just makes the next call rebuild
+                latest = version.get();
+                current = new Snapshot(latest, names.keySet().toArray(new String[0]), pageSize);
+                snapshot = current;
+            }
+        }
+        return current;
+    }
+
+    // ========== UserRoster.Snapshot ==========
+    /**
+     * Sorted names at one version, with rendered pages filled in on first use
+     */
+    private static final class Snapshot {
+        final long version;
+        final String[] names;
+        final int pageSize;
+        final AtomicReferenceArray<String> pages;
+
+        Snapshot(long version, String[] names, int pageSize) {
+            this.version = version;
+            this.names = names;
+            this.pageSize = pageSize;
+            this.pages = new AtomicReferenceArray<>(Math.max(1, pageCount()));
+        }
+
+        int pageCount() {
+            return (names.length + pageSize - 1) / pageSize;
+        }
+
+        String render(int number) {
+            String text = pages.get(number - 1);
+            if (text == null) {
+                // Two callers may render the same page at once; both get equal text
+                int pageCount = pageCount();
+                int from = (number - 1) * pageSize;
+                int to = Math.min(names.length, from + pageSize);
+                StringJoiner list = new StringJoiner(", ");
+                for (int i = from; i < to; i++) {
+                    list.add(names[i]);
+                }
+                text = "👥 Online users (" + names.length + ")" +
+                        (pageCount > 1 ? ", page " + number + "/" + pageCount : "") + ": " + list +
+                        (number < pageCount ? "\n💡 /users page " + (number + 1) + " for more, /users <prefix> to search" : "");
+                pages.set(number - 1, text);
+            }
+            return text;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+// ========== WebSocketCodec.java ==========
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * WebSocket (RFC 6455) protocol for one connection on the --ws-port listener
+ * Reads the HTTP upgrade request, then client frames. The payload of every
+ * data message goes to the ClientHandler as if it had arrived on a TCP socket
+ * (a text message is one line), so browsers share rooms, private messages and
+ * limits with line-protocol clients. Pings are answered with pongs, a close is
+ * echoed; fragmented or oversized control frames are a protocol error, and a
+ * text message that is not valid UTF-8 is closed with INVALID_DATA. The server
+ * closes with GOING_AWAY when it shuts down. Server output is one text message
+ * per chat line, built once per EncodedMessage (see
+ * EncodedMessage.webSocketBuffer) and shared by every WebSocket recipient, the
+ * same way plain lines are.
+ *
+ * Only one data message (up to FrameDecoder.MAX_BYTES) and the pieces of an
+ * incomplete frame are buffered; extensions and subprotocols are not offered.
+ */
+final class WebSocketCodec {
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int MAX_REQUEST_BYTES = 8 * 1024;
+
+    static final int CONTINUATION = 0x0;
+    static final int TEXT = 0x1;
+    static final int BINARY = 0x2;
+    static final int CLOSE = 0x8;
+    static final int PING = 0x9;
+    static final int PONG = 0xA;
+
+    static final int NORMAL_CLOSURE = 1000;
+    static final int GOING_AWAY = 1001;
+    static final int PROTOCOL_ERROR = 1002;
+    static final int INVALID_DATA = 1007;
+    static final int TOO_BIG = 1009;
+
+    private final Peer peer;
+    // Read by the thread closing the connection as well
+    private volatile boolean upgraded;
+    private volatile boolean closed;
+    // Unparsed input in pending[0, pendingLength): the request so far, or the start of an incomplete frame
+    private byte[] pending;
+    private int pendingLength;
+    // Fragments of the data message being received
+    private byte[] message;
+    private int messageLength;
+    private boolean messageIsText;
+
+    WebSocketCodec(Peer peer) {
+        this.peer = peer;
+    }
+
+    boolean isUpgraded() {
+        return upgraded;
+    }
+
+    // True for the one caller that gets to send the close frame (or refusal)
+    synchronized boolean markClosed() {
+        boolean wasOpen = !closed;
+        closed = true;
+        return wasOpen;
+    }
+
+    // Bytes read from the channel (I/O loop thread)
+    void feed(byte[] data, int offset, int length) {
+        byte[] input = data;
+        int position = offset;
+        int end = offset + length;
+        if (pendingLength > 0) {
+            append(data, offset, length);
+            input = pending;
+            position = 0;
+            end = pendingLength;
+        }
+        while (position < end && !closed) {
+            int next = upgraded ? readFrame(input, position, end) : readRequest(input, position, end);
+            if (next == position) {
+                break;
+            }
+            position = next;
+        }
+        if (closed || position == end) {
+            pending = null;
+            pendingLength = 0;
+        } else if (input == pending) {
+            System.arraycopy(pending, position, pending, 0, end - position);
+            pendingLength = end - position;
+        } else {
+            append(data, position, end - position);
+        }
+    }
+
+    // Add to pending, growing it by doubling so a frame sent in small pieces is copied O(n) times
+    private void append(byte[] data, int offset, int length) {
+        if (pending == null || pending.length - pendingLength < length) {
+            int capacity = Math.max(pending == null ? 256 : pending.length * 2, pendingLength + length);
+            pending = pending == null ? new byte[capacity] : Arrays.copyOf(pending, capacity);
+        }
+        System.arraycopy(data, offset, pending, pendingLength, length);
+        pendingLength += length;
+    }
+
+    // Returns where the frames start once the request is complete, else position
+    private int readRequest(byte[] data, int position, int end) {
+        int headerEnd = -1;
+        for (int i = position; i + 3 < end; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+                headerEnd = i + 4;
+                break;
+            }
+        }
+        if (headerEnd < 0) {
+            if (end - position > MAX_REQUEST_BYTES) {
+                reject("431 Request Header Fields Too Large", "");
+            }
+            return position;
+        }
+
+        String[] lines = new String(data, position, headerEnd - position, StandardCharsets.ISO_8859_1).split("\r\n");
+        String key = null;
+        boolean upgrade = false;
+        String version = null;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equals("upgrade")) {
+                upgrade = value.toLowerCase(Locale.ROOT).contains("websocket");
+            } else if (name.equals("sec-websocket-key")) {
+                key = value;
+            } else if (name.equals("sec-websocket-version")) {
+                version = value;
+            }
+        }
+        if (!lines[0].startsWith("GET ") || !upgrade || key == null) {
+            reject("400 Bad Request", "");
+            return end;
+        }
+        if (!"13".equals(version)) {
+            reject("426 Upgrade Required", "Sec-WebSocket-Version: 13\r\n");
+            return end;
+        }
+        upgraded = true;
+        peer.sendRaw(("HTTP/1.1 101 Switching Protocols\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        peer.onUpgraded();
+        return headerEnd;
+    }
+
+    private void reject(String status, String headers) {
+        if (!markClosed()) {
+            return;
+        }
+        peer.sendRaw(("HTTP/1.1 " + status + "\r\n" + headers +
+                "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        peer.onClose(false);
+    }
+
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(sha1.digest((key + GUID).getBytes(StandardCharsets.ISO_8859_1)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is always available", e);
+        }
+    }
+
+    // Returns where the next frame starts, or position while this one is incomplete
+    private int readFrame(byte[] data, int position, int end) {
+        if (end - position < 2) {
+            return position;
+        }
+        boolean fin = (data[position] & 0x80) != 0;
+        int opcode = data[position] & 0x0F;
+        boolean masked = (data[position + 1] & 0x80) != 0;
+        long length = data[position + 1] & 0x7F;
+        int header = 2;
+        if (length == 126) {
+            if (end - position < 4) {
+                return position;
+            }
+            length = ((data[position + 2] & 0xff) << 8) | (data[position + 3] & 0xff);
+            header = 4;
+        } else if (length == 127) {
+            if (end - position < 10) {
+                return position;
+            }
+            length = 0;
+            for (int i = 0; i < 8; i++) {
+                length = (length << 8) | (data[position + 2 + i] & 0xff);
+            }
+            header = 10;
+        }
+        if (!masked) {
+            // Clients must mask every frame
+            fail(PROTOCOL_ERROR);
+            return end;
+        }
+        if ((opcode & 0x8) != 0 && (!fin || length > 125)) {
+            // Control frames are never fragmented and fit in 125 bytes (RFC 6455 5.5)
+            fail(PROTOCOL_ERROR);
+            return end;
+        }
+        if (length < 0 || length > FrameDecoder.MAX_BYTES || messageLength + length > FrameDecoder.MAX_BYTES) {
+            fail(TOO_BIG);
+            return end;
+        }
+        int maskOffset = position + header;
+        int payloadOffset = maskOffset + 4;
+        if (end - payloadOffset < length) {
+            return position;
+        }
+        int payloadLength = (int) length;
+        // Unmask in place: the read buffer is ours until this call returns
+        for (int i = 0; i < payloadLength; i++) {
+            data[payloadOffset + i] ^= data[maskOffset + (i & 3)];
+        }
+        onFrame(fin, opcode, data, payloadOffset, payloadLength);
+        return payloadOffset + payloadLength;
+    }
+
+    private void onFrame(boolean fin, int opcode, byte[] data, int offset, int length) {
+        switch (opcode) {
+            case TEXT:
+            case BINARY:
+                if (message != null) {
+                    fail(PROTOCOL_ERROR);
+                    return;
+                }
+                messageIsText = opcode == TEXT;
+                if (fin) {
+                    deliver(data, offset, length);
+                } else {
+                    message = Arrays.copyOfRange(data, offset, offset + Math.max(length, 256));
+                    messageLength = length;
+                }
+                break;
+
+            case CONTINUATION:
+                if (message == null) {
+                    fail(PROTOCOL_ERROR);
+                    return;
+                }
+                if (message.length < messageLength + length) {
+                    message = Arrays.copyOf(message, Math.max(message.length * 2, messageLength + length));
+                }
+                System.arraycopy(data, offset, message, messageLength, length);
+                messageLength += length;
+                if (fin) {
+                    byte[] complete = message;
+                    message = null;
+                    deliver(complete, 0, messageLength);
+                    messageLength = 0;
+                }
+                break;
+
+            case PING:
+                peer.touch();
+                peer.sendRaw(controlFrame(PONG, Arrays.copyOfRange(data, offset, offset + length)));
+                break;
+
+            case PONG:
+                peer.touch();
+                break;
+
+            case CLOSE:
+                // Echo the status code, then hang up once it is written
+                if (markClosed()) {
+                    peer.sendRaw(controlFrame(CLOSE, Arrays.copyOfRange(data, offset, offset + Math.min(length, 2))));
+                }
+                peer.onClose(true);
+                break;
+
+            default:
+                fail(PROTOCOL_ERROR);
+                break;
+        }
+    }
+
+    // A whole data message: text is one line, binary goes in as raw stream bytes
+    private void deliver(byte[] data, int offset, int length) {
+        if (messageIsText && !isValidUtf8(data, offset, length)) {
+            fail(INVALID_DATA);
+            return;
+        }
+        if (messageIsText && (length == 0 || data[offset + length - 1] != '\n')) {
+            byte[] line = Arrays.copyOfRange(data, offset, offset + length + 1);
+            line[length] = '\n';
+            peer.onData(line, 0, line.length);
+        } else {
+            peer.onData(data, offset, length);
+        }
+    }
+
+    // Well-formed UTF-8 (RFC 3629): no overlong forms, surrogates or code points past U+10FFFF
+    static boolean isValidUtf8(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            int b = data[i++] & 0xff;
+            if (b < 0x80) {
+                continue;
+            }
+            int more;
+            int min;
+            int max = 0xBF;
+            if (b >= 0xC2 && b <= 0xDF) {
+                more = 1;
+                min = 0x80;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                more = 2;
+                min = b == 0xE0 ? 0xA0 : 0x80;
+                max = b == 0xED ? 0x9F : 0xBF;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                more = 3;
+                min = b == 0xF0 ? 0x90 : 0x80;
+                max = b == 0xF4 ? 0x8F : 0xBF;
+            } else {
+                return false;
+            }
+            if (end - i < more) {
+                return false;
+            }
+            // Only the first continuation byte has a narrower range
+            int next = data[i++] & 0xff;
+            if (next < min || next > max) {
+                return false;
+            }
+            for (int k = 1; k < more; k++) {
+                if ((data[i++] & 0xC0) != 0x80) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void fail(int status) {
+        if (markClosed()) {
+            peer.sendRaw(closeFrame(status));
+        }
+        peer.onClose(false);
+    }
+
+    // Server text frame for one encoded line (its '\n' is left out)
+    static byte[] textFrame(byte[] line) {
+        int length = line.length > 0 && line[line.length - 1] == '\n' ? line.length - 1 : line.length;
+        int header = length < 126 ? 2 : length <= 0xFFFF ? 4 : 10;
+        byte[] frame = new byte[header + length];
+        frame[0] = (byte) (0x80 | TEXT);
+        if (header == 2) {
+            frame[1] = (byte) length;
+        } else if (header == 4) {
+            frame[1] = 126;
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+        } else {
+            frame[1] = 127;
+            for (int i = 0; i < 8; i++) {
+                frame[2 + i] = (byte) ((long) length >>> (56 - 8 * i));
+            }
+        }
+        System.arraycopy(line, 0, frame, header, length);
+        return frame;
+    }
+
+    // Unmasked control frame (payload up to 125 bytes)
+    static byte[] controlFrame(int opcode, byte[] payload) {
+        byte[] frame = new byte[2 + payload.length];
+        frame[0] = (byte) (0x80 | opcode);
+        frame[1] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, 2, payload.length);
+        return frame;
+    }
+
+    static byte[] closeFrame(int status) {
+        return controlFrame(CLOSE, new byte[] {(byte) (status >>> 8), (byte) status});
+    }
+
+    // ========== WebSocketCodec.Peer ==========
+    /**
+     * The connection the codec reads for (NioConnection)
+     */
+    interface Peer {
+        // Upgrade accepted and the 101 response queued
+        void onUpgraded();
+
+        // Payload of a data message, as stream bytes for the ClientHandler
+        void onData(byte[] data, int offset, int length);
+
+        // Queue bytes as they are (handshake response, control frames)
+        void sendRaw(byte[] bytes);
+
+        // Ping or pong: the client is alive
+        void touch();
+
+        // Close after what is queued is written; clean = the client asked for it
+        void onClose(boolean clean);
+    }
+}
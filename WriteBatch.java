@@ -0,0 +1,75 @@
+// ========== WriteBatch.java ==========
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+/**
+ * Queued messages gathered into a single channel write
+ * A connection borrows one from its loop only while it has data in flight.
+ */
+class WriteBatch {
+    static final int MAX_MESSAGES = 64;
+
+    private final EncodedMessage[] messages = new EncodedMessage[MAX_MESSAGES];
+    private final ByteBuffer[] buffers = new ByteBuffer[MAX_MESSAGES];
+    private int start;
+    private int end;
+    private long bytes;
+
+    boolean isEmpty() {
+        return start == end;
+    }
+
+    // Take queued messages until the batch is full or holds maxBytes; returns (plain) bytes taken
+    long fill(OutboundQueue<EncodedMessage> queue, int maxBytes, NioConnection connection) {
+        long taken = 0;
+        EncodedMessage message;
+        while (end < MAX_MESSAGES && bytes < maxBytes && (message = queue.poll()) != null) {
+            messages[end] = message;
+            if (connection.webSocket != null) {
+                buffers[end] = message.webSocketBuffer();
+            } else if (connection.compressing) {
+                buffers[end] = message.framedBuffer();
+                ChatCompression.recordSent(message.length(), buffers[end].remaining());
+            } else {
+                buffers[end] = message.buffer();
+                connection.compressing = message.startsCompression();
+            }
+            bytes += buffers[end].remaining();
+            end++;
+            taken += message.length();
+        }
+        return taken;
+    }
+
+    // One gathering write; fully written messages are released. Returns messages completed.
+    int writeTo(GatheringByteChannel channel) throws IOException {
+        channel.write(buffers, start, end - start);
+        int completed = 0;
+        while (start < end && !buffers[start].hasRemaining()) {
+            messages[start].release();
+            messages[start] = null;
+            buffers[start] = null;
+            start++;
+            completed++;
+        }
+        if (start == end) {
+            start = 0;
+            end = 0;
+            bytes = 0;
+        }
+        return completed;
+    }
+
+    // Release anything not yet written
+    void clear() {
+        for (int i = start; i < end; i++) {
+            messages[i].release();
+            messages[i] = null;
+            buffers[i] = null;
+        }
+        start = 0;
+        end = 0;
+        bytes = 0;
+    }
+}